@@ -1,6 +1,20 @@
 package com.onslip.util;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /** A very fast and memory efficient class to encode and decode to and from BASE64 in full accordance
  * with RFC 2045.<br><br>
@@ -72,13 +86,51 @@ import java.util.Arrays;
 
 public class Base64
 {
-    private static final char[] CA = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
-    private static final int[] IA = new int[256];
-    static {
-        Arrays.fill(IA, -1);
-        for (int i = 0, iS = CA.length; i < iS; i++)
-            IA[CA[i]] = i;
-        IA['='] = 0;
+    /** Inputs shorter than this are not worth wrapping in ByteBuffers for word-at-a-time encoding. */
+    private static final int SWAR_MIN = 48;
+
+    /** Inputs smaller than this are coded on the calling thread by the parallel methods. */
+    private static final int PARALLEL_MIN = 1 << 20;
+
+    /** The approximate number of decoded bytes per task in the parallel methods. */
+    private static final int PARALLEL_CHUNK = 256 << 10;
+
+    /** The alphabet and padding policy of an encoding. The lookup tables are built once per variant, and the
+     * methods that take a variant run the same loops as the standard ones.
+     */
+    public enum Variant
+    {
+        /** The RFC 2045 alphabet, with <code>+/</code>, padded with '='. */
+        STANDARD("+/", true),
+
+        /** The RFC 2045 alphabet, without padding. Decoding accepts input with or without padding. */
+        STANDARD_UNPADDED("+/", false),
+
+        /** The RFC 4648 URL and filename safe alphabet, with <code>-_</code>, padded with '='. */
+        URL_SAFE("-_", true),
+
+        /** The RFC 4648 URL and filename safe alphabet, without padding, as in JWT. Decoding accepts input with or
+         * without padding. */
+        URL_SAFE_UNPADDED("-_", false);
+
+        final char[] ca;
+        final int[] ia = new int[256];
+        final char[] pairs = new char[4096]; // Two chars per 12 bits, for encodeWord()
+        final boolean pad;
+
+        private Variant(String last, boolean pad)
+        {
+            this.ca = ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789" + last).toCharArray();
+            this.pad = pad;
+
+            Arrays.fill(ia, -1);
+            for (int i = 0, iS = ca.length; i < iS; i++)
+                ia[ca[i]] = i;
+            ia['='] = 0;
+
+            for (int i = 0; i < pairs.length; i++)
+                pairs[i] = (char) (ca[i >> 6] << 8 | ca[i & 0x3f]);
+        }
     }
 
     // ****************************************************************************************
@@ -94,29 +146,58 @@ public class Base64
      */
     public final static char[] encodeToChar(byte[] sArr, boolean lineSep)
     {
-        // Check special case
+        return encodeToChar(Variant.STANDARD, sArr, lineSep);
+    }
+
+    /** Like {@link #encodeToChar(byte[], boolean)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static char[] encodeToChar(Variant variant, byte[] sArr, boolean lineSep)
+    {
         int sLen = sArr != null ? sArr.length : 0;
-        if (sLen == 0)
-            return new char[0];
+        char[] dArr = new char[encodedLength(variant, sLen, lineSep)];
+        if (sLen != 0)
+            encode(variant, sArr, 0, sLen, dArr, 0, lineSep);
+        return dArr;
+    }
+
+    /** Encodes raw bytes into a caller-supplied <code>char[]</code>, without allocating.
+     * @param sArr The bytes to convert.
+     * @param sOff The starting position in the bytes to convert.
+     * @param sLen The number of bytes to convert.
+     * @param dArr The destination array. Must have room for {@link #encodedLength(int, boolean)} chars.
+     * @param dOff The position in the destination array to start writing at.
+     * @param lineSep Optional "\r\n" after 76 characters, unless end of file.
+     * @return The number of chars written.
+     * @throws IndexOutOfBoundsException If the source range is invalid or the destination is too small.
+     */
+    public final static int encode(byte[] sArr, int sOff, int sLen, char[] dArr, int dOff, boolean lineSep)
+    {
+        return encode(Variant.STANDARD, sArr, sOff, sLen, dArr, dOff, lineSep);
+    }
+
+    /** Like {@link #encode(byte[], int, int, char[], int, boolean)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int encode(Variant variant, byte[] sArr, int sOff, int sLen, char[] dArr, int dOff, boolean lineSep)
+    {
+        char[] ca = variant.ca;
+        int dLen = encodedLength(variant, sLen, lineSep);
+        checkBounds(sArr.length, sOff, sLen);
+        checkBounds(dArr.length, dOff, dLen);
 
         int eLen = (sLen / 3) * 3;              // Length of even 24-bits.
-        int cCnt = ((sLen - 1) / 3 + 1) << 2;   // Returned character count
-        int dLen = cCnt + (lineSep ? (cCnt - 1) / 76 << 1 : 0); // Length of returned array
-        char[] dArr = new char[dLen];
+        int dEnd = dOff + dLen;
 
         // Encode even 24-bits
-        for (int s = 0, d = 0, cc = 0; s < eLen;) {
+        for (int s = sOff, d = dOff, cc = 0; s < sOff + eLen;) {
             // Copy next three bytes into lower 24 bits of int, paying attension to sign.
             int i = (sArr[s++] & 0xff) << 16 | (sArr[s++] & 0xff) << 8 | (sArr[s++] & 0xff);
 
             // Encode the int into four chars
-            dArr[d++] = CA[(i >>> 18) & 0x3f];
-            dArr[d++] = CA[(i >>> 12) & 0x3f];
-            dArr[d++] = CA[(i >>> 6) & 0x3f];
-            dArr[d++] = CA[i & 0x3f];
+            dArr[d++] = ca[(i >>> 18) & 0x3f];
+            dArr[d++] = ca[(i >>> 12) & 0x3f];
+            dArr[d++] = ca[(i >>> 6) & 0x3f];
+            dArr[d++] = ca[i & 0x3f];
 
             // Add optional line separator
-            if (lineSep && ++cc == 19 && d < dLen - 2) {
+            if (lineSep && ++cc == 19 && d < dEnd) {
                 dArr[d++] = '\r';
                 dArr[d++] = '\n';
                 cc = 0;
@@ -127,15 +208,18 @@ public class Base64
         int left = sLen - eLen; // 0 - 2.
         if (left > 0) {
             // Prepare the int
-            int i = ((sArr[eLen] & 0xff) << 10) | (left == 2 ? ((sArr[sLen - 1] & 0xff) << 2) : 0);
+            int i = ((sArr[sOff + eLen] & 0xff) << 10) | (left == 2 ? ((sArr[sOff + sLen - 1] & 0xff) << 2) : 0);
 
-            // Set last four chars
-            dArr[dLen - 4] = CA[i >> 12];
-            dArr[dLen - 3] = CA[(i >>> 6) & 0x3f];
-            dArr[dLen - 2] = left == 2 ? CA[i & 0x3f] : '=';
-            dArr[dLen - 1] = '=';
+            // Set last two or three chars, and padding
+            int d = dEnd - (variant.pad ? 4 : left + 1);
+            dArr[d++] = ca[i >> 12];
+            dArr[d++] = ca[(i >>> 6) & 0x3f];
+            if (left == 2)
+                dArr[d++] = ca[i & 0x3f];
+            while (d < dEnd)
+                dArr[d++] = '=';
         }
-        return dArr;
+        return dLen;
     }
 
     /** Decodes a BASE64 encoded char array. All illegal characters will be ignored and can handle both arrays with
@@ -146,36 +230,89 @@ public class Base64
      */
     public final static byte[] decode(char[] sArr)
     {
-        // Check special case
+        return decode(Variant.STANDARD, sArr);
+    }
+
+    /** Like {@link #decode(char[])}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] decode(Variant variant, char[] sArr)
+    {
         int sLen = sArr != null ? sArr.length : 0;
-        if (sLen == 0)
-            return new byte[0];
+        int len = sLen != 0 ? decodedLength(variant, sArr, 0, sLen) : 0;
+        if (len < 0)
+            return null;
+
+        byte[] dArr = new byte[len];       // Preallocate byte[] of exact length
+        if (len != 0)
+            decode(variant, sArr, 0, sLen, dArr, 0);
+        return dArr;
+    }
+
+    /** Returns the exact number of bytes that {@link #decode(char[], int, int, byte[], int)} will produce.
+     * @param sArr The source array.
+     * @param sOff The starting position in the source array.
+     * @param sLen The number of chars to decode.
+     * @return The decoded length, or -1 if the legal characters (including '=') isn't divideable by 4.
+     */
+    public final static int decodedLength(char[] sArr, int sOff, int sLen)
+    {
+        return decodedLength(Variant.STANDARD, sArr, sOff, sLen);
+    }
+
+    /** Like {@link #decodedLength(char[], int, int)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int decodedLength(Variant variant, char[] sArr, int sOff, int sLen)
+    {
+        int[] ia = variant.ia;
+        checkBounds(sArr.length, sOff, sLen);
 
         // Count illegal characters (including '\r', '\n') to know what size the returned array will be,
         // so we don't have to reallocate & copy it later.
         int sepCnt = 0; // Number of separator characters. (Actually illegal characters, but that's a bonus...)
         for (int i = 0; i < sLen; i++)  // If input is "pure" (I.e. no line separators or illegal chars) base64 this loop can be commented out.
-            if (IA[sArr[i]] < 0)
+            if (ia[sArr[sOff + i]] < 0)
                 sepCnt++;
 
-        // Check so that legal chars (including '=') are evenly divideable by 4 as specified in RFC 2045.
-        if ((sLen - sepCnt) % 4 != 0)
-            return null;
+        // Check so that legal chars (including '=') are evenly divideable by 4 as specified in RFC 2045,
+        // or, without padding, that the last group has at least two chars.
+        if ((sLen - sepCnt) % 4 != 0 && (variant.pad || (sLen - sepCnt) % 4 == 1))
+            return -1;
 
         int pad = 0;
-        for (int i = sLen; i > 1 && IA[sArr[--i]] <= 0;)
-            if (sArr[i] == '=')
+        for (int i = sLen; i > 1 && ia[sArr[sOff + --i]] <= 0;)
+            if (sArr[sOff + i] == '=')
                 pad++;
 
-        int len = ((sLen - sepCnt) * 6 >> 3) - pad;
+        return ((sLen - sepCnt) * 6 >> 3) - pad;
+    }
 
-        byte[] dArr = new byte[len];       // Preallocate byte[] of exact length
+    /** Decodes BASE64 encoded chars into a caller-supplied <code>byte[]</code>, without allocating. All illegal
+     * characters will be ignored.
+     * @param sArr The source array.
+     * @param sOff The starting position in the source array.
+     * @param sLen The number of chars to decode.
+     * @param dArr The destination array. Must have room for {@link #decodedLength(char[], int, int)} bytes.
+     * @param dOff The position in the destination array to start writing at.
+     * @return The number of bytes written, or -1 if the legal characters (including '=') isn't divideable by 4.
+     * @throws IndexOutOfBoundsException If the source range is invalid or the destination is too small.
+     */
+    public final static int decode(char[] sArr, int sOff, int sLen, byte[] dArr, int dOff)
+    {
+        return decode(Variant.STANDARD, sArr, sOff, sLen, dArr, dOff);
+    }
 
-        for (int s = 0, d = 0; d < len;) {
-            // Assemble three bytes into an int from four "valid" characters.
+    /** Like {@link #decode(char[], int, int, byte[], int)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int decode(Variant variant, char[] sArr, int sOff, int sLen, byte[] dArr, int dOff)
+    {
+        int[] ia = variant.ia;
+        int len = decodedLength(variant, sArr, sOff, sLen);
+        if (len < 0)
+            return -1;
+        checkBounds(dArr.length, dOff, len);
+
+        for (int s = sOff, sEnd = sOff + sLen, d = dOff, dEnd = dOff + len; d < dEnd;) {
+            // Assemble three bytes into an int from four "valid" characters (or fewer, at the end without padding).
             int i = 0;
-            for (int j = 0; j < 4; j++) {   // j only increased if a valid char was found.
-                int c = IA[sArr[s++]];
+            for (int j = 0; j < 4 && s < sEnd; j++) {   // j only increased if a valid char was found.
+                int c = ia[sArr[s++]];
                 if (c >= 0)
                     i |= c << (18 - j * 6);
                 else
@@ -183,13 +320,13 @@ public class Base64
             }
             // Add the bytes
             dArr[d++] = (byte) (i >> 16);
-            if (d < len) {
+            if (d < dEnd) {
                 dArr[d++]= (byte) (i >> 8);
-                if (d < len)
+                if (d < dEnd)
                     dArr[d++] = (byte) i;
             }
         }
-        return dArr;
+        return len;
     }
 
     /** Decodes a BASE64 encoded char array that is known to be resonably well formatted. The method is about twice as
@@ -203,6 +340,14 @@ public class Base64
      */
     public final static byte[] decodeFast(char[] sArr)
     {
+        return decodeFast(Variant.STANDARD, sArr);
+    }
+
+    /** Like {@link #decodeFast(char[])}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] decodeFast(Variant variant, char[] sArr)
+    {
+        int[] ia = variant.ia;
+
         // Check special case
         int sLen = sArr.length;
         if (sLen == 0)
@@ -211,11 +356,11 @@ public class Base64
         int sIx = 0, eIx = sLen - 1;    // Start and end index after trimming.
 
         // Trim illegal chars from start
-        while (sIx < eIx && IA[sArr[sIx]] < 0)
+        while (sIx < eIx && ia[sArr[sIx]] < 0)
             sIx++;
 
         // Trim illegal chars from end
-        while (eIx > 0 && IA[sArr[eIx]] < 0)
+        while (eIx > 0 && ia[sArr[eIx]] < 0)
             eIx--;
 
         // get the padding count (=) (0, 1 or 2)
@@ -230,7 +375,7 @@ public class Base64
         int d = 0;
         for (int cc = 0, eLen = (len / 3) * 3; d < eLen;) {
             // Assemble three bytes into an int from four "valid" characters.
-            int i = IA[sArr[sIx++]] << 18 | IA[sArr[sIx++]] << 12 | IA[sArr[sIx++]] << 6 | IA[sArr[sIx++]];
+            int i = ia[sArr[sIx++]] << 18 | ia[sArr[sIx++]] << 12 | ia[sArr[sIx++]] << 6 | ia[sArr[sIx++]];
 
             // Add the bytes
             dArr[d++] = (byte) (i >> 16);
@@ -248,7 +393,7 @@ public class Base64
             // Decode last 1-3 bytes (incl '=') into 1-3 bytes
             int i = 0;
             for (int j = 0; sIx <= eIx - pad; j++)
-                i |= IA[sArr[sIx++]] << (18 - j * 6);
+                i |= ia[sArr[sIx++]] << (18 - j * 6);
 
             for (int r = 16; d < len; r -= 8)
                 dArr[d++] = (byte) (i >> r);
@@ -270,7 +415,13 @@ public class Base64
      */
     public final static byte[] encodeToByte(byte[] sArr, boolean lineSep)
     {
-        return encodeToByte(sArr, 0, sArr != null ? sArr.length : 0, lineSep);
+        return encodeToByte(Variant.STANDARD, sArr, lineSep);
+    }
+
+    /** Like {@link #encodeToByte(byte[], boolean)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] encodeToByte(Variant variant, byte[] sArr, boolean lineSep)
+    {
+        return encodeToByte(variant, sArr, 0, sArr != null ? sArr.length : 0, lineSep);
     }
 
     /** Encodes a raw byte array into a BASE64 <code>byte[]</code> representation i accordance with RFC 2045.
@@ -283,29 +434,113 @@ public class Base64
      * @return A BASE64 encoded array. Never <code>null</code>.
      */
     public final static byte[] encodeToByte(byte[] sArr, int sOff, int sLen, boolean lineSep)
+    {
+        return encodeToByte(Variant.STANDARD, sArr, sOff, sLen, lineSep);
+    }
+
+    /** Like {@link #encodeToByte(byte[], int, int, boolean)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] encodeToByte(Variant variant, byte[] sArr, int sOff, int sLen, boolean lineSep)
     {
         // Check special case
         if (sArr == null || sLen == 0)
             return new byte[0];
 
-        int eLen = (sLen / 3) * 3;                              // Length of even 24-bits.
+        byte[] dArr = new byte[encodedLength(variant, sLen, lineSep)];
+        encode(variant, sArr, sOff, sLen, dArr, 0, lineSep);
+        return dArr;
+    }
+
+    /** Returns the exact length of the BASE64 encoding of <code>sLen</code> bytes.
+     * @param sLen The number of bytes to encode.
+     * @param lineSep Whether "\r\n" is added after each 76 characters.
+     * @return The number of encoded bytes or chars.
+     */
+    public final static int encodedLength(int sLen, boolean lineSep)
+    {
+        return encodedLength(Variant.STANDARD, sLen, lineSep);
+    }
+
+    /** Like {@link #encodedLength(int, boolean)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int encodedLength(Variant variant, int sLen, boolean lineSep)
+    {
+        if (sLen == 0)
+            return 0;
+
         int cCnt = ((sLen - 1) / 3 + 1) << 2;                   // Returned character count
-        int dLen = cCnt + (lineSep ? (cCnt - 1) / 76 << 1 : 0); // Length of returned array
-        byte[] dArr = new byte[dLen];
+        if (!variant.pad && sLen % 3 != 0)
+            cCnt -= 3 - sLen % 3;                               // Without the '=' chars
+        return cCnt + (lineSep ? (cCnt - 1) / 76 << 1 : 0);
+    }
+
+    /** Encodes raw bytes into a caller-supplied <code>byte[]</code>, without allocating.
+     * @param sArr The bytes to convert.
+     * @param sOff The starting position in the bytes to convert.
+     * @param sLen The number of bytes to convert.
+     * @param dArr The destination array. Must have room for {@link #encodedLength(int, boolean)} bytes.
+     * @param dOff The position in the destination array to start writing at.
+     * @param lineSep Optional "\r\n" after 76 characters, unless end of file.
+     * @return The number of bytes written.
+     * @throws IndexOutOfBoundsException If the source range is invalid or the destination is too small.
+     */
+    public final static int encode(byte[] sArr, int sOff, int sLen, byte[] dArr, int dOff, boolean lineSep)
+    {
+        return encode(Variant.STANDARD, sArr, sOff, sLen, dArr, dOff, lineSep);
+    }
+
+    /** Like {@link #encode(byte[], int, int, byte[], int, boolean)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int encode(Variant variant, byte[] sArr, int sOff, int sLen, byte[] dArr, int dOff, boolean lineSep)
+    {
+        char[] ca = variant.ca;
+        int dLen = encodedLength(variant, sLen, lineSep);
+        checkBounds(sArr.length, sOff, sLen);
+        checkBounds(dArr.length, dOff, dLen);
+
+        int eLen = (sLen / 3) * 3;                              // Length of even 24-bits.
+        int dEnd = dOff + dLen;
+
+        int s = sOff, d = dOff, cc = 0;
+
+        // Encode six bytes into eight chars at a time. With line separators, do whole lines of 19 groups.
+        if (eLen >= SWAR_MIN) {
+            ByteBuffer src = ByteBuffer.wrap(sArr), dst = ByteBuffer.wrap(dArr);
+            char[] pairs = variant.pairs;
+
+            if (lineSep) {
+                while (s + 57 <= sOff + eLen) {
+                    for (int w = 0; w < 9; w++, s += 6, d += 8)
+                        dst.putLong(d, encodeWord(pairs, src.getLong(s)));
+
+                    int i = (sArr[s++] & 0xff) << 16 | (sArr[s++] & 0xff) << 8 | (sArr[s++] & 0xff);
+                    dArr[d++] = (byte) ca[(i >>> 18) & 0x3f];
+                    dArr[d++] = (byte) ca[(i >>> 12) & 0x3f];
+                    dArr[d++] = (byte) ca[(i >>> 6) & 0x3f];
+                    dArr[d++] = (byte) ca[i & 0x3f];
+
+                    if (d < dEnd) {
+                        dArr[d++] = '\r';
+                        dArr[d++] = '\n';
+                    }
+                }
+            }
+            else {
+                for (int sMax = Math.min(sOff + eLen - 6, sArr.length - 8); s <= sMax; s += 6, d += 8)
+                    dst.putLong(d, encodeWord(pairs, src.getLong(s)));
+            }
+        }
 
         // Encode even 24-bits
-        for (int s = sOff, d = 0, cc = 0; s < sOff + eLen;) {
+        while (s < sOff + eLen) {
             // Copy next three bytes into lower 24 bits of int, paying attension to sign.
             int i = (sArr[s++] & 0xff) << 16 | (sArr[s++] & 0xff) << 8 | (sArr[s++] & 0xff);
 
             // Encode the int into four chars
-            dArr[d++] = (byte) CA[(i >>> 18) & 0x3f];
-            dArr[d++] = (byte) CA[(i >>> 12) & 0x3f];
-            dArr[d++] = (byte) CA[(i >>> 6) & 0x3f];
-            dArr[d++] = (byte) CA[i & 0x3f];
+            dArr[d++] = (byte) ca[(i >>> 18) & 0x3f];
+            dArr[d++] = (byte) ca[(i >>> 12) & 0x3f];
+            dArr[d++] = (byte) ca[(i >>> 6) & 0x3f];
+            dArr[d++] = (byte) ca[i & 0x3f];
 
             // Add optional line separator
-            if (lineSep && ++cc == 19 && d < dLen - 2) {
+            if (lineSep && ++cc == 19 && d < dEnd) {
                 dArr[d++] = '\r';
                 dArr[d++] = '\n';
                 cc = 0;
@@ -318,13 +553,16 @@ public class Base64
             // Prepare the int
             int i = ((sArr[sOff + eLen] & 0xff) << 10) | (left == 2 ? ((sArr[sOff + sLen - 1] & 0xff) << 2) : 0);
 
-            // Set last four chars
-            dArr[dLen - 4] = (byte) CA[i >> 12];
-            dArr[dLen - 3] = (byte) CA[(i >>> 6) & 0x3f];
-            dArr[dLen - 2] = left == 2 ? (byte) CA[i & 0x3f] : (byte) '=';
-            dArr[dLen - 1] = '=';
+            // Set last two or three chars, and padding
+            d = dEnd - (variant.pad ? 4 : left + 1);
+            dArr[d++] = (byte) ca[i >> 12];
+            dArr[d++] = (byte) ca[(i >>> 6) & 0x3f];
+            if (left == 2)
+                dArr[d++] = (byte) ca[i & 0x3f];
+            while (d < dEnd)
+                dArr[d++] = '=';
         }
-        return dArr;
+        return dLen;
     }
 
     /** Decodes a BASE64 encoded byte array. All illegal characters will be ignored and can handle both arrays with
@@ -335,7 +573,13 @@ public class Base64
      */
     public final static byte[] decode(byte[] sArr)
     {
-        return decode(sArr, 0, sArr.length);
+        return decode(Variant.STANDARD, sArr);
+    }
+
+    /** Like {@link #decode(byte[])}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] decode(Variant variant, byte[] sArr)
+    {
+        return decode(variant, sArr, 0, sArr.length);
     }
 
     /** Decodes a BASE64 encoded byte array. All illegal characters will be ignored and can handle both arrays with
@@ -348,31 +592,87 @@ public class Base64
      */
     public final static byte[] decode(byte[] sArr, int sOff, int sLen)
     {
+        return decode(Variant.STANDARD, sArr, sOff, sLen);
+    }
+
+    /** Like {@link #decode(byte[], int, int)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] decode(Variant variant, byte[] sArr, int sOff, int sLen)
+    {
+        int len = decodedLength(variant, sArr, sOff, sLen);
+        if (len < 0)
+            return null;
+
+        byte[] dArr = new byte[len];       // Preallocate byte[] of exact length
+        decode(variant, sArr, sOff, sLen, dArr, 0);
+        return dArr;
+    }
+
+    /** Returns the exact number of bytes that {@link #decode(byte[], int, int, byte[], int)} will produce.
+     * @param sArr The source array.
+     * @param sOff The starting position in the source array.
+     * @param sLen The number of bytes to decode.
+     * @return The decoded length, or -1 if the legal characters (including '=') isn't divideable by 4.
+     */
+    public final static int decodedLength(byte[] sArr, int sOff, int sLen)
+    {
+        return decodedLength(Variant.STANDARD, sArr, sOff, sLen);
+    }
+
+    /** Like {@link #decodedLength(byte[], int, int)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int decodedLength(Variant variant, byte[] sArr, int sOff, int sLen)
+    {
+        int[] ia = variant.ia;
+        checkBounds(sArr.length, sOff, sLen);
+
         // Count illegal characters (including '\r', '\n') to know what size the returned array will be,
         // so we don't have to reallocate & copy it later.
         int sepCnt = 0; // Number of separator characters. (Actually illegal characters, but that's a bonus...)
         for (int i = 0; i < sLen; i++)      // If input is "pure" (I.e. no line separators or illegal chars) base64 this loop can be commented out.
-            if (IA[sArr[sOff + i] & 0xff] < 0)
+            if (ia[sArr[sOff + i] & 0xff] < 0)
                 sepCnt++;
 
-        // Check so that legal chars (including '=') are evenly divideable by 4 as specified in RFC 2045.
-        if ((sLen - sepCnt) % 4 != 0)
-            return null;
+        // Check so that legal chars (including '=') are evenly divideable by 4 as specified in RFC 2045,
+        // or, without padding, that the last group has at least two chars.
+        if ((sLen - sepCnt) % 4 != 0 && (variant.pad || (sLen - sepCnt) % 4 == 1))
+            return -1;
 
         int pad = 0;
-        for (int i = sLen; i > 1 && IA[sArr[sOff + --i] & 0xff] <= 0;)
+        for (int i = sLen; i > 1 && ia[sArr[sOff + --i] & 0xff] <= 0;)
             if (sArr[sOff + i] == '=')
                 pad++;
 
-        int len = ((sLen - sepCnt) * 6 >> 3) - pad;
+        return ((sLen - sepCnt) * 6 >> 3) - pad;
+    }
 
-        byte[] dArr = new byte[len];       // Preallocate byte[] of exact length
+    /** Decodes BASE64 encoded bytes into a caller-supplied <code>byte[]</code>, without allocating. All illegal
+     * characters will be ignored.
+     * @param sArr The source array.
+     * @param sOff The starting position in the source array.
+     * @param sLen The number of bytes to decode.
+     * @param dArr The destination array. Must have room for {@link #decodedLength(byte[], int, int)} bytes.
+     * @param dOff The position in the destination array to start writing at.
+     * @return The number of bytes written, or -1 if the legal characters (including '=') isn't divideable by 4.
+     * @throws IndexOutOfBoundsException If the source range is invalid or the destination is too small.
+     */
+    public final static int decode(byte[] sArr, int sOff, int sLen, byte[] dArr, int dOff)
+    {
+        return decode(Variant.STANDARD, sArr, sOff, sLen, dArr, dOff);
+    }
 
-        for (int s = 0, d = 0; d < len;) {
-            // Assemble three bytes into an int from four "valid" characters.
+    /** Like {@link #decode(byte[], int, int, byte[], int)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int decode(Variant variant, byte[] sArr, int sOff, int sLen, byte[] dArr, int dOff)
+    {
+        int[] ia = variant.ia;
+        int len = decodedLength(variant, sArr, sOff, sLen);
+        if (len < 0)
+            return -1;
+        checkBounds(dArr.length, dOff, len);
+
+        for (int s = sOff, sEnd = sOff + sLen, d = dOff, dEnd = dOff + len; d < dEnd;) {
+            // Assemble three bytes into an int from four "valid" characters (or fewer, at the end without padding).
             int i = 0;
-            for (int j = 0; j < 4; j++) {   // j only increased if a valid char was found.
-                int c = IA[sArr[sOff + s++] & 0xff];
+            for (int j = 0; j < 4 && s < sEnd; j++) {   // j only increased if a valid char was found.
+                int c = ia[sArr[s++] & 0xff];
                 if (c >= 0)
                     i |= c << (18 - j * 6);
                 else
@@ -381,17 +681,16 @@ public class Base64
 
             // Add the bytes
             dArr[d++] = (byte) (i >> 16);
-            if (d < len) {
+            if (d < dEnd) {
                 dArr[d++]= (byte) (i >> 8);
-                if (d < len)
+                if (d < dEnd)
                     dArr[d++] = (byte) i;
             }
         }
 
-        return dArr;
+        return len;
     }
 
-
     /** Decodes a BASE64 encoded byte array that is known to be resonably well formatted. The method is about twice as
      * fast as {@link #decode(byte[])}. The preconditions are:<br>
      * + The array must have a line length of 76 chars OR no line separators at all (one line).<br>
@@ -402,35 +701,71 @@ public class Base64
      * @return The decoded array of bytes. May be of length 0.
      */
     public final static byte[] decodeFast(byte[] sArr)
+    {
+        return decodeFast(Variant.STANDARD, sArr);
+    }
+
+    /** Like {@link #decodeFast(byte[])}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] decodeFast(Variant variant, byte[] sArr)
     {
         // Check special case
         int sLen = sArr.length;
         if (sLen == 0)
             return new byte[0];
 
-        int sIx = 0, eIx = sLen - 1;    // Start and end index after trimming.
+        byte[] dArr = new byte[decodedLengthFast(variant, sArr, 0, sLen)];       // Preallocate byte[] of exact length
+        decodeFast(variant, sArr, 0, sLen, dArr, 0);
+        return dArr;
+    }
+
+    /** Like {@link #decodeFast(byte[])}, but decodes into a caller-supplied <code>byte[]</code>, without allocating.
+     * The source has the same preconditions.
+     * @param sArr The source array.
+     * @param sOff The starting position in the source array.
+     * @param sLen The number of bytes to decode.
+     * @param dArr The destination array. Must have room for {@link #decodedLength(byte[], int, int)} bytes.
+     * @param dOff The position in the destination array to start writing at.
+     * @return The number of bytes written.
+     * @throws IndexOutOfBoundsException If the source range is invalid or the destination is too small.
+     */
+    public final static int decodeFast(byte[] sArr, int sOff, int sLen, byte[] dArr, int dOff)
+    {
+        return decodeFast(Variant.STANDARD, sArr, sOff, sLen, dArr, dOff);
+    }
+
+    /** Like {@link #decodeFast(byte[], int, int, byte[], int)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int decodeFast(Variant variant, byte[] sArr, int sOff, int sLen, byte[] dArr, int dOff)
+    {
+        int[] ia = variant.ia;
+        checkBounds(sArr.length, sOff, sLen);
+
+        // Check special case
+        if (sLen == 0)
+            return 0;
+
+        int sIx = sOff, eIx = sOff + sLen - 1;    // Start and end index after trimming.
 
         // Trim illegal chars from start
-        while (sIx < eIx && IA[sArr[sIx] & 0xff] < 0)
+        while (sIx < eIx && ia[sArr[sIx] & 0xff] < 0)
             sIx++;
 
         // Trim illegal chars from end
-        while (eIx > 0 && IA[sArr[eIx] & 0xff] < 0)
+        while (eIx > sOff && ia[sArr[eIx] & 0xff] < 0)
             eIx--;
 
         // get the padding count (=) (0, 1 or 2)
         int pad = sArr[eIx] == '=' ? (sArr[eIx - 1] == '=' ? 2 : 1) : 0;  // Count '=' at end.
         int cCnt = eIx - sIx + 1;   // Content count including possible separators
-        int sepCnt = sLen > 76 ? (sArr[76] == '\r' ? cCnt / 78 : 0) << 1 : 0;
+        int sepCnt = sLen > 76 ? (sArr[sOff + 76] == '\r' ? cCnt / 78 : 0) << 1 : 0;
 
         int len = ((cCnt - sepCnt) * 6 >> 3) - pad; // The number of decoded bytes
-        byte[] dArr = new byte[len];       // Preallocate byte[] of exact length
+        checkBounds(dArr.length, dOff, len);
 
         // Decode all but the last 0 - 2 bytes.
-        int d = 0;
-        for (int cc = 0, eLen = (len / 3) * 3; d < eLen;) {
+        int d = dOff;
+        for (int cc = 0, eLen = dOff + (len / 3) * 3; d < eLen;) {
             // Assemble three bytes into an int from four "valid" characters.
-            int i = IA[sArr[sIx++]] << 18 | IA[sArr[sIx++]] << 12 | IA[sArr[sIx++]] << 6 | IA[sArr[sIx++]];
+            int i = ia[sArr[sIx++]] << 18 | ia[sArr[sIx++]] << 12 | ia[sArr[sIx++]] << 6 | ia[sArr[sIx++]];
 
             // Add the bytes
             dArr[d++] = (byte) (i >> 16);
@@ -444,17 +779,36 @@ public class Base64
             }
         }
 
-        if (d < len) {
+        if (d < dOff + len) {
             // Decode last 1-3 bytes (incl '=') into 1-3 bytes
             int i = 0;
             for (int j = 0; sIx <= eIx - pad; j++)
-                i |= IA[sArr[sIx++]] << (18 - j * 6);
+                i |= ia[sArr[sIx++]] << (18 - j * 6);
 
-            for (int r = 16; d < len; r -= 8)
+            for (int r = 16; d < dOff + len; r -= 8)
                 dArr[d++] = (byte) (i >> r);
         }
 
-        return dArr;
+        return len;
+    }
+
+    /** The decoded length of well formatted input, as in {@link #decodeFast(byte[], int, int, byte[], int)}. */
+    private static int decodedLengthFast(Variant variant, byte[] sArr, int sOff, int sLen)
+    {
+        int[] ia = variant.ia;
+        int sIx = sOff, eIx = sOff + sLen - 1;
+
+        while (sIx < eIx && ia[sArr[sIx] & 0xff] < 0)
+            sIx++;
+
+        while (eIx > sOff && ia[sArr[eIx] & 0xff] < 0)
+            eIx--;
+
+        int pad = sArr[eIx] == '=' ? (sArr[eIx - 1] == '=' ? 2 : 1) : 0;
+        int cCnt = eIx - sIx + 1;
+        int sepCnt = sLen > 76 ? (sArr[sOff + 76] == '\r' ? cCnt / 78 : 0) << 1 : 0;
+
+        return ((cCnt - sepCnt) * 6 >> 3) - pad;
     }
 
     // ****************************************************************************************
@@ -469,9 +823,15 @@ public class Base64
      * @return A BASE64 encoded array. Never <code>null</code>.
      */
     public final static String encodeToString(byte[] sArr, boolean lineSep)
+    {
+        return encodeToString(Variant.STANDARD, sArr, lineSep);
+    }
+
+    /** Like {@link #encodeToString(byte[], boolean)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static String encodeToString(Variant variant, byte[] sArr, boolean lineSep)
     {
         // Reuse char[] since we can't create a String incrementally anyway and StringBuffer/Builder would be slower.
-        return new String(encodeToChar(sArr, lineSep));
+        return new String(encodeToChar(variant, sArr, lineSep));
     }
 
     /** Decodes a BASE64 encoded <code>String</code>. All illegal characters will be ignored and can handle both strings with
@@ -484,6 +844,14 @@ public class Base64
      */
     public final static byte[] decode(String str)
     {
+        return decode(Variant.STANDARD, str);
+    }
+
+    /** Like {@link #decode(String)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] decode(Variant variant, String str)
+    {
+        int[] ia = variant.ia;
+
         // Check special case
         int sLen = str != null ? str.length() : 0;
         if (sLen == 0)
@@ -493,16 +861,17 @@ public class Base64
         // so we don't have to reallocate & copy it later.
         int sepCnt = 0; // Number of separator characters. (Actually illegal characters, but that's a bonus...)
         for (int i = 0; i < sLen; i++)  // If input is "pure" (I.e. no line separators or illegal chars) base64 this loop can be commented out.
-            if (IA[str.charAt(i)] < 0)
+            if (ia[str.charAt(i)] < 0)
                 sepCnt++;
 
-        // Check so that legal chars (including '=') are evenly divideable by 4 as specified in RFC 2045.
-        if ((sLen - sepCnt) % 4 != 0)
+        // Check so that legal chars (including '=') are evenly divideable by 4 as specified in RFC 2045,
+        // or, without padding, that the last group has at least two chars.
+        if ((sLen - sepCnt) % 4 != 0 && (variant.pad || (sLen - sepCnt) % 4 == 1))
             return null;
 
         // Count '=' at end
         int pad = 0;
-        for (int i = sLen; i > 1 && IA[str.charAt(--i)] <= 0;)
+        for (int i = sLen; i > 1 && ia[str.charAt(--i)] <= 0;)
             if (str.charAt(i) == '=')
                 pad++;
 
@@ -511,10 +880,10 @@ public class Base64
         byte[] dArr = new byte[len];       // Preallocate byte[] of exact length
 
         for (int s = 0, d = 0; d < len;) {
-            // Assemble three bytes into an int from four "valid" characters.
+            // Assemble three bytes into an int from four "valid" characters (or fewer, at the end without padding).
             int i = 0;
-            for (int j = 0; j < 4; j++) {   // j only increased if a valid char was found.
-                int c = IA[str.charAt(s++)];
+            for (int j = 0; j < 4 && s < sLen; j++) {   // j only increased if a valid char was found.
+                int c = ia[str.charAt(s++)];
                 if (c >= 0)
                     i |= c << (18 - j * 6);
                 else
@@ -542,6 +911,14 @@ public class Base64
      */
     public final static byte[] decodeFast(String s)
     {
+        return decodeFast(Variant.STANDARD, s);
+    }
+
+    /** Like {@link #decodeFast(String)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] decodeFast(Variant variant, String s)
+    {
+        int[] ia = variant.ia;
+
         // Check special case
         int sLen = s.length();
         if (sLen == 0)
@@ -550,11 +927,11 @@ public class Base64
         int sIx = 0, eIx = sLen - 1;    // Start and end index after trimming.
 
         // Trim illegal chars from start
-        while (sIx < eIx && IA[s.charAt(sIx) & 0xff] < 0)
+        while (sIx < eIx && ia[s.charAt(sIx) & 0xff] < 0)
             sIx++;
 
         // Trim illegal chars from end
-        while (eIx > 0 && IA[s.charAt(eIx) & 0xff] < 0)
+        while (eIx > 0 && ia[s.charAt(eIx) & 0xff] < 0)
             eIx--;
 
         // get the padding count (=) (0, 1 or 2)
@@ -569,7 +946,7 @@ public class Base64
         int d = 0;
         for (int cc = 0, eLen = (len / 3) * 3; d < eLen;) {
             // Assemble three bytes into an int from four "valid" characters.
-            int i = IA[s.charAt(sIx++)] << 18 | IA[s.charAt(sIx++)] << 12 | IA[s.charAt(sIx++)] << 6 | IA[s.charAt(sIx++)];
+            int i = ia[s.charAt(sIx++)] << 18 | ia[s.charAt(sIx++)] << 12 | ia[s.charAt(sIx++)] << 6 | ia[s.charAt(sIx++)];
 
             // Add the bytes
             dArr[d++] = (byte) (i >> 16);
@@ -587,7 +964,7 @@ public class Base64
             // Decode last 1-3 bytes (incl '=') into 1-3 bytes
             int i = 0;
             for (int j = 0; sIx <= eIx - pad; j++)
-                i |= IA[s.charAt(sIx++)] << (18 - j * 6);
+                i |= ia[s.charAt(sIx++)] << (18 - j * 6);
 
             for (int r = 16; d < len; r -= 8)
                 dArr[d++] = (byte) (i >> r);
@@ -595,4 +972,674 @@ public class Base64
 
         return dArr;
     }
-}
\ No newline at end of file
+
+    // ****************************************************************************************
+    // * ByteBuffer version
+    // ****************************************************************************************
+
+    /** Encodes the remaining bytes of a buffer into another buffer. Heap buffers are encoded in place, without
+     * allocating. Direct buffers are staged through arrays from {@link BufferPool#shared()}, which only avoids
+     * allocation while the data fits its largest size class (64 KiB); larger data is staged through new arrays.
+     * @param src The bytes to convert. Its position is advanced to its limit.
+     * @param dst The destination buffer. Its position is advanced past the encoded bytes.
+     * @param lineSep Optional "\r\n" after 76 characters, unless end of file.
+     * @return The number of bytes written.
+     * @throws BufferOverflowException If <code>dst</code> is too small. Neither buffer is modified.
+     */
+    public final static int encode(ByteBuffer src, ByteBuffer dst, boolean lineSep)
+    {
+        return encode(Variant.STANDARD, src, dst, lineSep);
+    }
+
+    /** Like {@link #encode(ByteBuffer, ByteBuffer, boolean)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int encode(Variant variant, ByteBuffer src, ByteBuffer dst, boolean lineSep)
+    {
+        int sLen = src.remaining();
+        int dLen = encodedLength(variant, sLen, lineSep);
+        if (dst.remaining() < dLen)
+            throw new BufferOverflowException();
+
+        if (src.hasArray() && dst.hasArray()) {
+            encode(variant, src.array(), src.arrayOffset() + src.position(), sLen, dst.array(), dst.arrayOffset() + dst.position(), lineSep);
+        }
+        else {
+            byte[] sArr = BufferPool.shared().acquire(sLen);
+            byte[] dArr = BufferPool.shared().acquire(dLen);
+
+            try {
+                src.duplicate().get(sArr, 0, sLen);
+                encode(variant, sArr, 0, sLen, dArr, 0, lineSep);
+                dst.duplicate().put(dArr, 0, dLen);
+            }
+            finally {
+                BufferPool.shared().release(sArr);
+                BufferPool.shared().release(dArr);
+            }
+        }
+
+        src.position(src.limit());
+        dst.position(dst.position() + dLen);
+        return dLen;
+    }
+
+    /** Decodes the remaining bytes of a buffer into another buffer. All illegal characters will be ignored. Heap
+     * buffers are decoded in place, without allocating. Direct buffers are staged through arrays from
+     * {@link BufferPool#shared()}, which only avoids allocation while the data fits its largest size class (64 KiB);
+     * larger data is staged through new arrays.
+     * @param src The BASE64 encoded bytes. Its position is advanced to its limit.
+     * @param dst The destination buffer. Its position is advanced past the decoded bytes.
+     * @return The number of bytes written, or -1 if the legal characters (including '=') isn't divideable by 4, in
+     * which case neither buffer is modified.
+     * @throws BufferOverflowException If <code>dst</code> is too small. Neither buffer is modified.
+     */
+    public final static int decode(ByteBuffer src, ByteBuffer dst)
+    {
+        return decode(Variant.STANDARD, src, dst);
+    }
+
+    /** Like {@link #decode(ByteBuffer, ByteBuffer)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static int decode(Variant variant, ByteBuffer src, ByteBuffer dst)
+    {
+        int sLen = src.remaining();
+        byte[] sArr = src.hasArray() ? src.array() : BufferPool.shared().acquire(sLen);
+        int sOff = src.hasArray() ? src.arrayOffset() + src.position() : 0;
+
+        try {
+            if (!src.hasArray())
+                src.duplicate().get(sArr, 0, sLen);
+
+            int len = decodedLength(variant, sArr, sOff, sLen);
+            if (len < 0)
+                return -1;
+            else if (dst.remaining() < len)
+                throw new BufferOverflowException();
+
+            if (dst.hasArray()) {
+                decode(variant, sArr, sOff, sLen, dst.array(), dst.arrayOffset() + dst.position());
+            }
+            else {
+                byte[] dArr = BufferPool.shared().acquire(len);
+
+                try {
+                    decode(variant, sArr, sOff, sLen, dArr, 0);
+                    dst.duplicate().put(dArr, 0, len);
+                }
+                finally {
+                    BufferPool.shared().release(dArr);
+                }
+            }
+
+            src.position(src.limit());
+            dst.position(dst.position() + len);
+            return len;
+        }
+        finally {
+            if (!src.hasArray())
+                BufferPool.shared().release(sArr);
+        }
+    }
+
+    // ****************************************************************************************
+    // * Parallel version
+    // ****************************************************************************************
+
+    /** Encodes a large byte array into a BASE64 <code>byte[]</code>, in chunks on the threads of <code>executor</code>.
+     * Inputs smaller than 1 MiB are encoded on the calling thread. The chunks are whole lines (or groups of three
+     * bytes without line separators), so each one is encoded straight into its slot of the result.
+     * @param sArr The bytes to convert. If <code>null</code> or length 0 an empty array will be returned.
+     * @param lineSep Optional "\r\n" after 76 characters, unless end of file.
+     * @param executor The executor to run the chunks on. Must not be the one running the caller, if it is bounded.
+     * @return A BASE64 encoded array, the same as {@link #encodeToByte(byte[], boolean)} returns.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the chunks.
+     */
+    public final static byte[] encodeToByte(byte[] sArr, boolean lineSep, ExecutorService executor) throws InterruptedException
+    {
+        return encodeToByte(Variant.STANDARD, sArr, lineSep, executor);
+    }
+
+    /** Like {@link #encodeToByte(byte[], boolean, ExecutorService)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] encodeToByte(final Variant variant, final byte[] sArr, final boolean lineSep, ExecutorService executor)
+        throws InterruptedException
+    {
+        int sLen = sArr != null ? sArr.length : 0;
+        if (sLen < PARALLEL_MIN)
+            return encodeToByte(variant, sArr, lineSep);
+
+        final byte[] dArr = new byte[encodedLength(variant, sLen, lineSep)];
+        int chunk = PARALLEL_CHUNK / 57 * 57;   // A multiple of both a group and a line
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(sLen / chunk + 1);
+
+        for (int s = 0; s < sLen; s += chunk) {
+            final int sOff = s, len = Math.min(chunk, sLen - s);
+            final int dOff = lineSep ? s / 57 * 78 : s / 3 * 4;
+
+            tasks.add(new Callable<Integer>() {
+                public Integer call()
+                {
+                    int d = dOff + encode(variant, sArr, sOff, len, dArr, dOff, lineSep);
+
+                    // The line separator between this chunk and the next
+                    if (lineSep && d < dArr.length) {
+                        dArr[d++] = '\r';
+                        dArr[d++] = '\n';
+                    }
+                    return d - dOff;
+                }
+            });
+        }
+
+        invokeAll(executor, tasks);
+        return dArr;
+    }
+
+    /** Decodes a large BASE64 encoded array, in chunks on the threads of <code>executor</code>. The array has the
+     * same preconditions as for {@link #decodeFast(byte[])}; with line separators, the chunks are whole 76 char
+     * lines, otherwise groups of four chars. Inputs smaller than 1 MiB are decoded on the calling thread.
+     * @param sArr The source array. Length 0 will return an empty array. <code>null</code> will throw an exception.
+     * @param executor The executor to run the chunks on. Must not be the one running the caller, if it is bounded.
+     * @return The decoded array of bytes. May be of length 0.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the chunks.
+     */
+    public final static byte[] decodeFast(byte[] sArr, ExecutorService executor) throws InterruptedException
+    {
+        return decodeFast(Variant.STANDARD, sArr, executor);
+    }
+
+    /** Like {@link #decodeFast(byte[], ExecutorService)}, but with the alphabet and padding of <code>variant</code>. */
+    public final static byte[] decodeFast(final Variant variant, final byte[] sArr, ExecutorService executor)
+        throws InterruptedException
+    {
+        int[] ia = variant.ia;
+        int sLen = sArr.length;
+        if (sLen < PARALLEL_MIN)
+            return decodeFast(variant, sArr);
+
+        // Trim illegal chars from start, and find the line layout, like decodeFast() does
+        int sIx = 0;
+        while (sIx < sLen - 1 && ia[sArr[sIx] & 0xff] < 0)
+            sIx++;
+
+        boolean lines = sArr[76] == '\r';
+        final byte[] dArr = new byte[decodedLengthFast(variant, sArr, 0, sLen)];
+        int chunk = PARALLEL_CHUNK / (lines ? 57 : 3); // Lines or groups per chunk
+        int sChunk = chunk * (lines ? 78 : 4), dChunk = chunk * (lines ? 57 : 3);
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(dArr.length / dChunk + 1);
+
+        for (int s = sIx, d = 0; d < dArr.length; s += sChunk, d += dChunk) {
+            final int sOff = s, dOff = d;
+            final int len = d + dChunk < dArr.length ? sChunk : sLen - s; // The last chunk takes the padding and the rest
+
+            tasks.add(new Callable<Integer>() {
+                public Integer call()
+                {
+                    return decodeFast(variant, sArr, sOff, len, dArr, dOff);
+                }
+            });
+        }
+
+        invokeAll(executor, tasks);
+        return dArr;
+    }
+
+    /** Runs the tasks and waits for all of them, rethrowing the first failure. */
+    private static void invokeAll(ExecutorService executor, List<Callable<Integer>> tasks) throws InterruptedException
+    {
+        for (Future<Integer> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) ex.getCause();
+                if (ex.getCause() instanceof Error)
+                    throw (Error) ex.getCause();
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+    }
+
+    // ****************************************************************************************
+    // * Streaming version
+    // ****************************************************************************************
+
+    /** Drives a codec over buffers. Direct and read-only buffers are staged through pooled arrays. */
+    abstract static class Coder
+    {
+        int sPos, dPos; // Array positions after the last call to code()
+
+        private final byte[] pending = new byte[6]; // Output of a group that did not fit
+        private int pendingPos, pendingLen;
+
+        /** Codes <code>s[sp, sl)</code> into <code>d[dp, dl)</code>, and sets {@link #sPos} and {@link #dPos}. */
+        abstract CoderResult code(byte[] s, int sp, int sl, byte[] d, int dp, int dl, boolean endOfInput);
+
+        final CoderResult code(ByteBuffer in, ByteBuffer out, boolean endOfInput)
+        {
+            if (in.hasArray() && out.hasArray()) {
+                CoderResult result = code(in.array(), in.arrayOffset() + in.position(), in.arrayOffset() + in.limit(),
+                                          out.array(), out.arrayOffset() + out.position(), out.arrayOffset() + out.limit(),
+                                          endOfInput);
+                in.position(sPos - in.arrayOffset());
+                out.position(dPos - out.arrayOffset());
+                return result;
+            }
+
+            byte[] s = BufferPool.shared().acquire(4096);
+            byte[] d = BufferPool.shared().acquire(8192);
+
+            try {
+                while (true) {
+                    int sl = Math.min(in.remaining(), s.length);
+                    int dl = Math.min(out.remaining(), d.length);
+
+                    in.duplicate().get(s, 0, sl);
+                    CoderResult result = code(s, 0, sl, d, 0, dl, endOfInput && sl == in.remaining());
+                    in.position(in.position() + sPos);
+                    out.put(d, 0, dPos);
+
+                    if (result != CoderResult.UNDERFLOW || !in.hasRemaining() || dl == 0)
+                        return result;
+                }
+            }
+            finally {
+                BufferPool.shared().release(s);
+                BufferPool.shared().release(d);
+            }
+        }
+
+        /** Returns an array to write <code>len</code> bytes of output to: <code>d</code> if they fit, else the pending
+         * buffer. */
+        final byte[] target(byte[] d, int dp, int dl, int len)
+        {
+            if (dl - dp >= len)
+                return d;
+
+            pendingPos = 0;
+            pendingLen = len;
+            return pending;
+        }
+
+        /** Copies as much pending output as fits into <code>d</code>, and returns the new <code>dp</code>. */
+        final int drain(byte[] d, int dp, int dl)
+        {
+            int n = Math.min(pendingLen - pendingPos, dl - dp);
+            System.arraycopy(pending, pendingPos, d, dp, n);
+            pendingPos += n;
+            return dp + n;
+        }
+
+        final boolean hasPending()
+        {
+            return pendingPos < pendingLen;
+        }
+
+        final void clearPending()
+        {
+            pendingPos = pendingLen = 0;
+        }
+    }
+
+    /** A resumable BASE64 encoder, like {@link java.nio.charset.CharsetEncoder}. Up to two bytes of an incomplete
+     * 3-byte group are kept between calls, so any amount of data can be encoded in constant memory. Not thread-safe.
+     */
+    public static class Encoder extends Coder
+    {
+        private final Variant variant;
+        private final boolean lineSep;
+        private int bits, count;    // Pending bytes of an incomplete group
+        private int column;         // Chars on the current line
+
+        /** @param lineSep Optional "\r\n" after 76 characters, unless end of file. */
+        public Encoder(boolean lineSep)
+        {
+            this(Variant.STANDARD, lineSep);
+        }
+
+        /** @param variant The alphabet and padding to use.
+         * @param lineSep Optional "\r\n" after 76 characters, unless end of file. */
+        public Encoder(Variant variant, boolean lineSep)
+        {
+            this.variant = variant;
+            this.lineSep = lineSep;
+        }
+
+        /** Forgets any pending bytes, so that a new encoding can begin. */
+        public Encoder reset()
+        {
+            bits = count = column = 0;
+            clearPending();
+            return this;
+        }
+
+        /** Encodes as much as possible from <code>in</code> into <code>out</code>.
+         * @param in The bytes to encode.
+         * @param out The destination for BASE64 encoded bytes.
+         * @param endOfInput <code>true</code> if <code>in</code> holds the last bytes, so that the final group can be
+         * padded.
+         * @return {@link CoderResult#UNDERFLOW} if all input was consumed (and, at end of input, all output written),
+         * or {@link CoderResult#OVERFLOW} if <code>out</code> is full.
+         */
+        public CoderResult encode(ByteBuffer in, ByteBuffer out, boolean endOfInput)
+        {
+            return code(in, out, endOfInput);
+        }
+
+        /** Returns a stream that encodes everything written to it into <code>os</code>. Closing it writes the final
+         * group and closes <code>os</code>; flushing it does not write an incomplete group.
+         */
+        public static OutputStream wrap(OutputStream os, boolean lineSep)
+        {
+            return wrap(os, Variant.STANDARD, lineSep);
+        }
+
+        /** Like {@link #wrap(OutputStream, boolean)}, but with the alphabet and padding of <code>variant</code>. */
+        public static OutputStream wrap(OutputStream os, Variant variant, boolean lineSep)
+        {
+            return new EncoderOutputStream(os, new Encoder(variant, lineSep));
+        }
+
+        @Override CoderResult code(byte[] s, int sp, int sl, byte[] d, int dp, int dl, boolean endOfInput)
+        {
+            char[] ca = variant.ca;
+            dp = drain(d, dp, dl);
+
+            while (!hasPending()) {
+                // Fast path: whole groups with room to spare
+                for (int lineEnd = lineSep ? 76 : Integer.MAX_VALUE; count == 0 && sl - sp >= 3 && dl - dp >= 6;) {
+                    if (column == lineEnd) {
+                        d[dp++] = '\r';
+                        d[dp++] = '\n';
+                        column = 0;
+                    }
+
+                    int i = (s[sp++] & 0xff) << 16 | (s[sp++] & 0xff) << 8 | (s[sp++] & 0xff);
+                    d[dp++] = (byte) ca[(i >>> 18) & 0x3f];
+                    d[dp++] = (byte) ca[(i >>> 12) & 0x3f];
+                    d[dp++] = (byte) ca[(i >>> 6) & 0x3f];
+                    d[dp++] = (byte) ca[i & 0x3f];
+                    column += 4;
+                }
+
+                while (count < 3 && sp < sl) {
+                    bits = bits << 8 | (s[sp++] & 0xff);
+                    count++;
+                }
+
+                if (count < 3 && !(endOfInput && count > 0))
+                    break;
+
+                int sep = lineSep && column == 76 ? 2 : 0;
+                byte[] t = target(d, dp, dl, (variant.pad || count == 3 ? 4 : count + 1) + sep);
+                int tp = t == d ? dp : 0;
+
+                if (sep != 0) {
+                    t[tp++] = '\r';
+                    t[tp++] = '\n';
+                    column = 0;
+                }
+
+                int i = bits << (8 * (3 - count));  // Partial groups are padded with zero bits
+                t[tp++] = (byte) ca[(i >>> 18) & 0x3f];
+                t[tp++] = (byte) ca[(i >>> 12) & 0x3f];
+                if (count > 1)
+                    t[tp++] = (byte) ca[(i >>> 6) & 0x3f];
+                else if (variant.pad)
+                    t[tp++] = '=';
+                if (count > 2)
+                    t[tp++] = (byte) ca[i & 0x3f];
+                else if (variant.pad)
+                    t[tp++] = '=';
+                column += 4;
+                bits = count = 0;
+                dp = t == d ? tp : drain(d, dp, dl);
+            }
+
+            sPos = sp;
+            dPos = dp;
+            return hasPending() ? CoderResult.OVERFLOW : CoderResult.UNDERFLOW;
+        }
+    }
+
+    /** A resumable BASE64 decoder, like {@link java.nio.charset.CharsetDecoder}. Up to three chars of an incomplete
+     * 4-char group are kept between calls. Illegal characters, such as line separators, are ignored, as in
+     * {@link #decode(byte[])}. Not thread-safe.
+     */
+    public static class Decoder extends Coder
+    {
+        private final Variant variant;
+        private int bits, count;    // Pending chars of an incomplete group
+        private int pad;            // '=' chars in the pending group
+
+        public Decoder()
+        {
+            this(Variant.STANDARD);
+        }
+
+        /** @param variant The alphabet and padding to use. Unpadded variants accept a final group without padding. */
+        public Decoder(Variant variant)
+        {
+            this.variant = variant;
+        }
+
+        /** Forgets any pending chars, so that a new decoding can begin. */
+        public Decoder reset()
+        {
+            bits = count = pad = 0;
+            clearPending();
+            return this;
+        }
+
+        /** Decodes as much as possible from <code>in</code> into <code>out</code>.
+         * @param in The BASE64 encoded bytes.
+         * @param out The destination for decoded bytes.
+         * @param endOfInput <code>true</code> if <code>in</code> holds the last bytes.
+         * @return {@link CoderResult#UNDERFLOW} if all input was consumed, {@link CoderResult#OVERFLOW} if
+         * <code>out</code> is full, or a malformed-input result if the input ends with an incomplete group or has
+         * more than two '=' in a group.
+         */
+        public CoderResult decode(ByteBuffer in, ByteBuffer out, boolean endOfInput)
+        {
+            return code(in, out, endOfInput);
+        }
+
+        /** Returns a stream that decodes BASE64 data read from <code>is</code>. Reads throw an {@link IOException}
+         * if the data is corrupt.
+         */
+        public static InputStream wrap(InputStream is)
+        {
+            return wrap(is, Variant.STANDARD);
+        }
+
+        /** Like {@link #wrap(InputStream)}, but with the alphabet and padding of <code>variant</code>. */
+        public static InputStream wrap(InputStream is, Variant variant)
+        {
+            return new DecoderInputStream(is, new Decoder(variant));
+        }
+
+        @Override CoderResult code(byte[] s, int sp, int sl, byte[] d, int dp, int dl, boolean endOfInput)
+        {
+            int[] ia = variant.ia;
+            CoderResult result = CoderResult.UNDERFLOW;
+            dp = drain(d, dp, dl);
+
+            for (; sp < sl && !hasPending(); sp++) {
+                int c = ia[s[sp] & 0xff];
+                if (c < 0)
+                    continue;
+
+                if (s[sp] == '=' && ++pad > 2) {
+                    result = CoderResult.malformedForLength(1);
+                    sp++;
+                    break;
+                }
+
+                bits = bits << 6 | c;
+                if (++count == 4) {
+                    byte[] t = target(d, dp, dl, 3 - pad);
+                    int tp = t == d ? dp : 0;
+
+                    t[tp++] = (byte) (bits >> 16);
+                    if (pad < 2)
+                        t[tp++] = (byte) (bits >> 8);
+                    if (pad < 1)
+                        t[tp++] = (byte) bits;
+                    bits = count = pad = 0;
+                    dp = t == d ? tp : drain(d, dp, dl);
+                }
+            }
+
+            if (result == CoderResult.UNDERFLOW && endOfInput && count != 0 && !hasPending()) {
+                int len = count - 1 - pad;
+                if (variant.pad || len < 1) {
+                    result = CoderResult.malformedForLength(count);
+                    reset();
+                }
+                else { // Unpadded last group of two or three chars
+                    int i = bits << 6 * (4 - count);
+                    byte[] t = target(d, dp, dl, len);
+                    int tp = t == d ? dp : 0;
+
+                    t[tp++] = (byte) (i >> 16);
+                    if (len == 2)
+                        t[tp++] = (byte) (i >> 8);
+                    bits = count = pad = 0;
+                    dp = t == d ? tp : drain(d, dp, dl);
+                }
+            }
+
+            if (hasPending())
+                result = CoderResult.OVERFLOW;
+
+            sPos = sp;
+            dPos = dp;
+            return result;
+        }
+    }
+
+    private static class EncoderOutputStream extends FilterOutputStream
+    {
+        private final Encoder encoder;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private final byte[] single = new byte[1];
+        private boolean closed;
+
+        EncoderOutputStream(OutputStream os, Encoder encoder)
+        {
+            super(os);
+            this.encoder = encoder;
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (closed)
+                throw new IOException("Stream closed");
+
+            ByteBuffer in = ByteBuffer.wrap(b, off, len);
+            while (encoder.encode(in, buffer, false) == CoderResult.OVERFLOW)
+                drain();
+        }
+
+        @Override public void flush() throws IOException
+        {
+            drain();
+            out.flush();
+        }
+
+        @Override public void close() throws IOException
+        {
+            if (!closed) {
+                while (encoder.encode(ByteBuffer.wrap(new byte[0]), buffer, true) == CoderResult.OVERFLOW)
+                    drain();
+
+                closed = true;
+                super.close();  // Flushes
+            }
+        }
+
+        private void drain() throws IOException
+        {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+
+    private static class DecoderInputStream extends FilterInputStream
+    {
+        private final Decoder decoder;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private final byte[] single = new byte[1];
+        private boolean endOfInput, done;
+
+        DecoderInputStream(InputStream is, Decoder decoder)
+        {
+            super(is);
+            this.decoder = decoder;
+            buffer.flip();
+        }
+
+        @Override public int read() throws IOException
+        {
+            return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+
+            ByteBuffer out = ByteBuffer.wrap(b, off, len);
+            while (out.position() == off && !done) {
+                if (!buffer.hasRemaining() && !endOfInput) {
+                    buffer.clear();
+                    int cnt = in.read(buffer.array(), 0, buffer.capacity());
+                    buffer.limit(Math.max(cnt, 0));
+                    endOfInput = cnt < 0;
+                }
+
+                CoderResult result = decoder.decode(buffer, out, endOfInput);
+                if (result.isMalformed())
+                    throw new IOException("Invalid BASE64 data");
+
+                done = endOfInput && result.isUnderflow();
+            }
+
+            return out.position() == off ? -1 : out.position() - off;
+        }
+
+        @Override public long skip(long n) throws IOException
+        {
+            byte[] b = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+            int cnt = read(b, 0, b.length);
+            return Math.max(cnt, 0);
+        }
+
+        @Override public int available() throws IOException
+        {
+            return 0;
+        }
+
+        @Override public boolean markSupported()
+        {
+            return false;
+        }
+    }
+
+    /** Encodes the top six bytes of a big-endian word into eight chars, two at a time. */
+    private static long encodeWord(char[] pairs, long w)
+    {
+        return (long) pairs[(int) (w >>> 52)] << 48 | (long) pairs[(int) (w >>> 40) & 0xfff] << 32
+             | (long) pairs[(int) (w >>> 28) & 0xfff] << 16 | pairs[(int) (w >>> 16) & 0xfff];
+    }
+
+    private static void checkBounds(int length, int off, int len)
+    {
+        if (off < 0 || len < 0 || off > length - len)
+            throw new IndexOutOfBoundsException("Range [" + off + ", " + off + " + " + len + ") out of bounds for length " + length);
+    }
+}
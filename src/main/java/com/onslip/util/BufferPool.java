@@ -0,0 +1,146 @@
+package com.onslip.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of byte arrays, for short-lived I/O buffers. Arrays come in power-of-two size classes. Each thread caches
+ * one array per size class of at most 8 KiB; beyond that, released arrays go to a lock-free shared free list, as long
+ * as the total size of the shared arrays stays below a limit. Arrays that do not fit are left to the garbage
+ * collector.
+ * <p>
+ * The thread caches are not counted against the limit. They hold less than 16 KiB per thread, and only in threads
+ * that have used the pool.
+ * <p>
+ * A released array must not be used again by the caller, and must not be released twice.
+ */
+public class BufferPool {
+    private static final BufferPool shared = new BufferPool(1024, 65536, 4 << 20);
+    private static final int maxCachedShift = 13; // Thread caches hold arrays up to 8 KiB
+
+    private final int minShift;
+    private final int maxShift;
+    private final long maxRetained;
+    private final AtomicLong retained = new AtomicLong();
+    private final AtomicReferenceArray<byte[]>[] freeLists;
+    private final ThreadLocal<byte[][]> caches;
+
+    /** Returns the pool used by this library: 1 KiB to 64 KiB arrays, and at most 4 MiB shared. */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Creates a buffer pool.
+     *
+     * @param minSize     The smallest size class. Rounded up to a power of two.
+     * @param maxSize     The largest size class. Larger arrays are never pooled.
+     * @param maxRetained The maximum number of bytes in the shared free lists.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minSize, int maxSize, long maxRetained) {
+        if (minSize <= 0 || maxSize < minSize || maxSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid size classes");
+        }
+
+        this.minShift    = shift(minSize);
+        this.maxShift    = shift(maxSize);
+        this.maxRetained = maxRetained;
+        this.freeLists   = new AtomicReferenceArray[maxShift - minShift + 1];
+
+        for (int i = 0; i < freeLists.length; ++i) {
+            freeLists[i] = new AtomicReferenceArray<byte[]>(16);
+        }
+
+        caches = new ThreadLocal<byte[][]>() {
+            @Override protected byte[][] initialValue() {
+                return new byte[Math.max(0, Math.min(maxShift, maxCachedShift) - minShift + 1)][];
+            }
+        };
+    }
+
+    /**
+     * Borrows an array.
+     *
+     * @param minLength The minimum length of the array.
+     * @return          An array of at least <code>minLength</code> bytes, with undefined contents.
+     */
+    public byte[] acquire(int minLength) {
+        int shift = shift(Math.max(minLength, 1));
+
+        if (shift > maxShift) {
+            return new byte[minLength];
+        }
+
+        int sizeClass   = Math.max(shift, minShift) - minShift;
+        byte[][] cache  = caches.get();
+        byte[] buffer   = sizeClass < cache.length ? cache[sizeClass] : null;
+
+        if (buffer != null) {
+            cache[sizeClass] = null;
+            return buffer;
+        }
+
+        AtomicReferenceArray<byte[]> freeList = freeLists[sizeClass];
+
+        for (int i = 0; i < freeList.length(); ++i) {
+            if ((buffer = freeList.get(i)) != null && freeList.compareAndSet(i, buffer, null)) {
+                retained.addAndGet(-buffer.length);
+                return buffer;
+            }
+        }
+
+        return new byte[1 << (sizeClass + minShift)];
+    }
+
+    /**
+     * Returns an array to the pool. Arrays whose length is not one of the pool's size classes are ignored; others are
+     * accepted, even if they were not acquired from this pool.
+     *
+     * @param buffer The array to return, or null.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+
+        int shift = shift(buffer.length);
+
+        if (shift < minShift || shift > maxShift) {
+            return;
+        }
+
+        int sizeClass  = shift - minShift;
+        byte[][] cache = caches.get();
+
+        if (sizeClass < cache.length && cache[sizeClass] == null) {
+            cache[sizeClass] = buffer;
+            return;
+        }
+
+        if (retained.addAndGet(buffer.length) > maxRetained) {
+            retained.addAndGet(-buffer.length);
+            return;
+        }
+
+        AtomicReferenceArray<byte[]> freeList = freeLists[sizeClass];
+
+        for (int i = 0; i < freeList.length(); ++i) {
+            if (freeList.get(i) == null && freeList.compareAndSet(i, null, buffer)) {
+                return;
+            }
+        }
+
+        retained.addAndGet(-buffer.length); // Free list full
+    }
+
+    /** The number of bytes currently held in the shared free lists. */
+    public long getRetainedBytes() {
+        return retained.get();
+    }
+
+    /** Returns log2 of the smallest power of two that is at least <code>size</code>. */
+    private static int shift(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
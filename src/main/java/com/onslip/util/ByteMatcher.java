@@ -0,0 +1,215 @@
+package com.onslip.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds stop bytes or multi-byte terminators in byte streams. Use {@link ByteUtils#indexOf(byte[], int, int,
+ * ByteMatcher)} to search arrays, or feed bytes one at a time to {@link #matches(byte)}.
+ * <p>
+ * Byte set matchers are stateless and may be shared. Sequence matchers remember partial matches, so that a
+ * terminator split across two buffers is found; use one instance per stream, or call {@link #reset()}.
+ */
+public abstract class ByteMatcher {
+    private static final ByteMatcher control = new ByteSet(new long[] { 0x00000000ffffffffL, 0x8000000000000000L,
+                                                                        0x00000000ffffffffL, 0 });
+
+    private static final ByteMatcher anyByte = new ByteSet(new long[] { -1L, -1L, -1L, -1L });
+
+    /** Matches any of the given bytes. One to three bytes are searched for eight bytes at a time. */
+    public static ByteMatcher anyOf(byte... bytes) {
+        if (bytes.length >= 1 && bytes.length <= 3) {
+            return new SmallByteSet(bytes);
+        }
+
+        return new ByteSet(bitmap(bytes));
+    }
+
+    /** Matches ISO control characters (0x00-0x1F and 0x7F-0x9F), like {@link Character#isISOControl(int)}. */
+    public static ByteMatcher control() {
+        return control;
+    }
+
+    /** Matches any byte. Mostly useful as a wildcard in {@link #sequence(ByteMatcher...)}. */
+    public static ByteMatcher anyByte() {
+        return anyByte;
+    }
+
+    /** Matches a multi-byte terminator, such as <code>\r\n</code>. */
+    public static ByteMatcher sequence(byte... terminator) {
+        ByteMatcher[] elements = new ByteMatcher[terminator.length];
+
+        for (int i = 0; i < terminator.length; ++i) {
+            elements[i] = anyOf(terminator[i]);
+        }
+
+        return sequence(elements);
+    }
+
+    /**
+     * Matches a sequence of byte sets. For instance, <code>sequence(anyOf(ETX), anyByte())</code> matches ETX and
+     * the LRC byte that follows it.
+     *
+     * @param elements Byte set matchers (not sequences), at most 64.
+     */
+    public static ByteMatcher sequence(ByteMatcher... elements) {
+        if (elements.length == 0 || elements.length > 64) {
+            throw new IllegalArgumentException("Sequence must have 1-64 elements");
+        }
+
+        return new Sequence(elements);
+    }
+
+    /**
+     * Feeds one byte to the matcher.
+     *
+     * @param b The next byte of the stream.
+     * @return  true if this byte completes a match.
+     */
+    public abstract boolean matches(byte b);
+
+    /** Forgets any partial match. */
+    public void reset() {
+    }
+
+    /** Returns the index of the first byte in <code>b[from, to)</code> that completes a match, or -1. */
+    int find(byte[] b, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (matches(b[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the index, relative to the position, of the first of the next <code>len</code> bytes of
+     * <code>b</code> that completes a match, or -1. The buffer's position is not changed.
+     */
+    int find(ByteBuffer b, int len) {
+        if (b.hasArray()) {
+            int start = b.arrayOffset() + b.position();
+            int found = find(b.array(), start, start + len);
+
+            return found < 0 ? -1 : found - start;
+        }
+
+        for (int i = 0; i < len; ++i) {
+            if (matches(b.get(b.position() + i))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /** A 256-bit lookup table. */
+    private static class ByteSet extends ByteMatcher {
+        private final long[] set;
+
+        ByteSet(long[] set) {
+            this.set = set;
+        }
+
+        @Override public boolean matches(byte b) {
+            return (set[(b & 0xff) >>> 6] & (1L << b)) != 0;
+        }
+
+        @Override int find(byte[] b, int from, int to) {
+            long[] set = this.set;
+
+            for (int i = from; i < to; ++i) {
+                if ((set[(b[i] & 0xff) >>> 6] & (1L << b[i])) != 0) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    /** Up to three bytes, searched a word at a time (SWAR). */
+    private static class SmallByteSet extends ByteSet {
+        private static final long ONES  = 0x0101010101010101L;
+        private static final long HIGHS = 0x8080808080808080L;
+
+        private final long pattern1, pattern2, pattern3;
+
+        SmallByteSet(byte[] bytes) {
+            super(bitmap(bytes));
+
+            pattern1 = (bytes[0] & 0xff) * ONES;
+            pattern2 = (bytes[Math.min(1, bytes.length - 1)] & 0xff) * ONES;
+            pattern3 = (bytes[bytes.length - 1] & 0xff) * ONES;
+        }
+
+        @Override int find(byte[] b, int from, int to) {
+            int i = from;
+
+            if (to - from >= 16) {
+                for (; i <= to - 8; i += 8) {
+                    long word  = littleEndian(b, i);
+                    long found = zeroBytes(word ^ pattern1) | zeroBytes(word ^ pattern2) | zeroBytes(word ^ pattern3);
+
+                    if (found != 0) { // The lowest flagged byte is always a true match
+                        return i + (Long.numberOfTrailingZeros(found) >>> 3);
+                    }
+                }
+            }
+
+            return super.find(b, i, to);
+        }
+
+        private static long zeroBytes(long word) {
+            return (word - ONES) & ~word & HIGHS;
+        }
+
+        private static long littleEndian(byte[] b, int i) {
+            return (b[i]     & 0xffL)       | (b[i + 1] & 0xffL) <<  8 | (b[i + 2] & 0xffL) << 16 |
+                   (b[i + 3] & 0xffL) << 24 | (b[i + 4] & 0xffL) << 32 | (b[i + 5] & 0xffL) << 40 |
+                   (b[i + 6] & 0xffL) << 48 | (b[i + 7] & 0xffL) << 56;
+        }
+    }
+
+    /** Shift-and (bitap) matching, with one state bit per sequence element. */
+    private static class Sequence extends ByteMatcher {
+        private final long[] masks = new long[256];
+        private final long accept;
+        private long state;
+
+        Sequence(ByteMatcher[] elements) {
+            for (int i = 0; i < elements.length; ++i) {
+                if (!(elements[i] instanceof ByteSet)) {
+                    throw new IllegalArgumentException("Sequence elements must be byte sets");
+                }
+
+                for (int b = 0; b < 256; ++b) {
+                    if (elements[i].matches((byte) b)) {
+                        masks[b] |= 1L << i;
+                    }
+                }
+            }
+
+            accept = 1L << (elements.length - 1);
+        }
+
+        @Override public boolean matches(byte b) {
+            state = ((state << 1) | 1) & masks[b & 0xff];
+            return (state & accept) != 0;
+        }
+
+        @Override public void reset() {
+            state = 0;
+        }
+    }
+
+    private static long[] bitmap(byte[] bytes) {
+        long[] set = new long[4];
+
+        for (byte b : bytes) {
+            set[(b & 0xff) >>> 6] |= 1L << b;
+        }
+
+        return set;
+    }
+}
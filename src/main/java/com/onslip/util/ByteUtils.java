@@ -224,6 +224,23 @@ public abstract class ByteUtils {
         return result;
     }
 
+    /**
+     * Finds the first match of a {@link ByteMatcher} in an array.
+     *
+     * @param bin     The array to search.
+     * @param off     Where to start searching.
+     * @param len     The number of bytes to search.
+     * @param matcher What to search for.
+     * @return        The index of the byte that completes the match, or -1 if not found.
+     */
+    public static int indexOf(byte[] bin, int off, int len, ByteMatcher matcher) {
+        if (off < 0 || len < 0 || len > bin.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return matcher.find(bin, off, off + len);
+    }
+
     public static byte[] xor(byte[] first, byte[] second) {
         if (first.length != second.length) {
             throw new IllegalArgumentException("Array sizes differ");
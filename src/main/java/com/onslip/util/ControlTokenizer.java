@@ -0,0 +1,176 @@
+package com.onslip.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into Latin-1 tokens delimited by ISO control characters, like
+ * {@link IOUtils#readUntilControl(java.io.PushbackInputStream)}, but reading a whole buffer at a time.
+ * <p>
+ * {@link #nextToken()} stops at the delimiter without consuming it; use {@link #read()} to consume it. Not
+ * thread-safe.
+ */
+public class ControlTokenizer {
+    private final InputStream is;
+    private final ReadableByteChannel channel;
+    private final View view = new View();
+    private byte[] buffer;
+    private ByteBuffer wrapper;
+    private int start, end;
+    private boolean endOfFile;
+
+    public ControlTokenizer(InputStream is) {
+        this(is, null, 8192);
+    }
+
+    public ControlTokenizer(ReadableByteChannel channel) {
+        this(null, channel, 8192);
+    }
+
+    /**
+     * @param is         The stream to read from.
+     * @param bufferSize The initial buffer size. The buffer grows if a token does not fit.
+     */
+    public ControlTokenizer(InputStream is, int bufferSize) {
+        this(is, null, bufferSize);
+    }
+
+    private ControlTokenizer(InputStream is, ReadableByteChannel channel, int bufferSize) {
+        this.is      = is;
+        this.channel = channel;
+        this.buffer  = new byte[Math.max(1, bufferSize)];
+        this.wrapper = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Reads up to, but not including, the next control character or EOF.
+     *
+     * @return The token as a Latin-1 string; empty if the next byte is a control character, or null on EOF.
+     * @throws IOException On I/O errors.
+     */
+    public String nextToken() throws IOException {
+        CharSequence token = nextTokenView();
+
+        return token != null ? token.toString() : null;
+    }
+
+    /**
+     * Like {@link #nextToken()}, but returns a view of the internal buffer instead of a new string. The view is only
+     * valid until the next call to this tokenizer.
+     */
+    public CharSequence nextTokenView() throws IOException {
+        int scanned = 0, found; // Relative to start, since fill() moves the data
+
+        while ((found = ByteUtils.indexOf(buffer, start + scanned, end - start - scanned, ByteMatcher.control())) < 0) {
+            scanned = end - start;
+
+            if (!fill()) {
+                if (start == end) {
+                    return null;
+                }
+
+                found = end;
+                break;
+            }
+        }
+
+        view.set(start, found);
+        start = found;
+        return view;
+    }
+
+    /**
+     * Reads and consumes one byte, such as the delimiter after a token.
+     *
+     * @return The byte, or -1 on EOF.
+     * @throws IOException On I/O errors.
+     */
+    public int read() throws IOException {
+        int b = peek();
+
+        if (b >= 0) {
+            ++start;
+        }
+
+        return b;
+    }
+
+    /**
+     * Returns the next byte without consuming it.
+     *
+     * @return The byte, or -1 on EOF.
+     * @throws IOException On I/O errors.
+     */
+    public int peek() throws IOException {
+        return start < end || fill() ? buffer[start] & 0xff : -1;
+    }
+
+    /** Moves unconsumed data to the front of the buffer (growing it if full) and reads more. Returns false on EOF. */
+    private boolean fill() throws IOException {
+        if (endOfFile) {
+            return false;
+        }
+
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end  -= start;
+            start = 0;
+        }
+        else if (end == buffer.length) {
+            buffer  = Arrays.copyOf(buffer, buffer.length * 2);
+            wrapper = ByteBuffer.wrap(buffer);
+        }
+
+        int count;
+
+        if (is != null) {
+            count = is.read(buffer, end, buffer.length - end);
+        }
+        else {
+            wrapper.limit(buffer.length);
+            wrapper.position(end);
+            count = channel.read(wrapper);
+        }
+
+        if (count < 0) {
+            endOfFile = true;
+            return false;
+        }
+
+        end += count;
+        return true;
+    }
+
+    /** A Latin-1 view of part of the buffer. */
+    private class View implements CharSequence {
+        private int from, to;
+
+        void set(int from, int to) {
+            this.from = from;
+            this.to   = to;
+        }
+
+        @Override public int length() {
+            return to - from;
+        }
+
+        @Override public char charAt(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            return (char) (buffer[from + index] & 0xff);
+        }
+
+        @Override public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override public String toString() {
+            return new String(buffer, from, to - from, IOUtils.latin1);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.onslip.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A timer for large numbers of timeouts that are usually cancelled before they expire. Scheduling and cancelling
+ * are O(1) and lock-free; timeouts are kept in a wheel of buckets, one per tick, and a single thread expires one
+ * bucket per tick. Timeouts fire at most one tick late.
+ * <p>
+ * Tasks run on the timer thread, so they should be short and must not block.
+ */
+public class HashedWheelTimer {
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread worker;
+    private volatile boolean stopped;
+    private boolean shared;
+
+    /** Created on first use, when {@link #shared()} is first called. */
+    private static class SharedTimer {
+        static final HashedWheelTimer INSTANCE =
+            new HashedWheelTimer(HashedWheelTimer.class.getSimpleName(), 10, TimeUnit.MILLISECONDS, 512);
+
+        static {
+            INSTANCE.shared = true;
+        }
+    }
+
+    /** Returns a timer with 10 ms ticks, shared by everyone. It runs on a daemon thread and must not be stopped. */
+    public static HashedWheelTimer shared() {
+        return SharedTimer.INSTANCE;
+    }
+
+    /**
+     * Creates a timer and starts its (daemon) thread.
+     *
+     * @param name         The name of the timer thread.
+     * @param tickDuration The timer resolution.
+     * @param unit         The unit of <code>tickDuration</code>.
+     * @param wheelSize    The number of buckets. Rounded up to a power of two.
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid tick duration or wheel size");
+        }
+
+        int size = 1;
+
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        tickNanos = unit.toNanos(tickDuration);
+        wheel     = new Bucket[size];
+        mask      = size - 1;
+
+        for (int i = 0; i < wheel.length; ++i) {
+            wheel[i] = new Bucket();
+        }
+
+        worker = new Thread(new Runnable() {
+            @Override public void run() {
+                work();
+            }
+        }, name);
+
+        worker.setDaemon(true);
+        startTime = System.nanoTime();
+        worker.start();
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task  The task to run when the timeout expires.
+     * @param delay How long to wait.
+     * @param unit  The unit of <code>delay</code>.
+     * @return      A handle that can be used to cancel the timeout.
+     * @throws IllegalStateException If the timer has been stopped.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("Timer stopped");
+        }
+
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /** Stops the timer thread. Pending timeouts never expire. */
+    public void stop() {
+        if (shared) {
+            throw new IllegalStateException("The shared timer cannot be stopped");
+        }
+
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void work() {
+        for (long tick = 0; !stopped; ++tick) {
+            try {
+                awaitTick(tick);
+            }
+            catch (InterruptedException ex) {
+                break;
+            }
+
+            Timeout timeout;
+
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+
+            for (int i = 0; i < 100000 && (timeout = scheduled.poll()) != null; ++i) {
+                if (timeout.state == Timeout.PENDING) {
+                    long ticks = timeout.deadline / tickNanos;
+
+                    timeout.rounds = (ticks - tick) / wheel.length;
+                    wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+                }
+            }
+
+            wheel[(int) (tick & mask)].expire();
+        }
+    }
+
+    /** Sleeps until the end of the tick. */
+    private void awaitTick(long tick) throws InterruptedException {
+        long deadline = tickNanos * (tick + 1);
+        long sleep;
+
+        while ((sleep = (deadline - (System.nanoTime() - startTime) + 999999) / 1000000) > 0) {
+            Thread.sleep(sleep);
+        }
+    }
+
+    /** A scheduled task. */
+    public class Timeout {
+        private static final int PENDING   = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED   = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        volatile int state; // Not private, for STATE
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task     = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return true if the timeout was cancelled, false if it had already expired or been cancelled.
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+
+            cancelled.add(this); // Unlinked from its bucket by the timer thread
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                try {
+                    task.run();
+                }
+                catch (Throwable ex) { // Errors too: the timer thread must survive a broken task
+                    worker.getUncaughtExceptionHandler().uncaughtException(worker, ex);
+                }
+            }
+        }
+    }
+
+    /** A doubly linked list of timeouts. Only accessed by the timer thread. */
+    private static class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev   = tail;
+
+            if (tail == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                tail      = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            }
+            else {
+                timeout.prev.next = timeout.next;
+            }
+
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            }
+            else {
+                timeout.next.prev = timeout.prev;
+            }
+
+            timeout.bucket = null;
+            timeout.prev   = timeout.next = null;
+        }
+
+        void expire() {
+            for (Timeout timeout = head, next; timeout != null; timeout = next) {
+                next = timeout.next;
+
+                if (timeout.rounds <= 0 || timeout.state != Timeout.PENDING) {
+                    remove(timeout);
+                    timeout.expire();
+                }
+                else {
+                    --timeout.rounds;
+                }
+            }
+        }
+    }
+}
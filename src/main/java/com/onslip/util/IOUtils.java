@@ -2,20 +2,28 @@
 package com.onslip.util;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 public abstract class IOUtils {
+    private static final int MAX_ARRAY_SIZE   = Integer.MAX_VALUE - 8;
+    private static final int MAX_INITIAL_SIZE = 1 << 20; // Size hints beyond this must be confirmed by the data
+
     public static Charset latin1 = Charset.forName("ISO-8859-1");
     public static Charset utf8   = Charset.forName("UTF-8");
 
-    private static final Timer timer = new Timer(IOUtils.class.getSimpleName(), true);
-
     public static ThreadLocal<CharsetDecoder> utf8Decoder = new ThreadLocal<CharsetDecoder>() {
         @Override public CharsetDecoder initialValue() {
             return utf8.newDecoder();
@@ -44,25 +52,476 @@ public abstract class IOUtils {
     }
 
     public static String readLatin1OrUTF8(byte[] bytes) {
+        return readLatin1OrUTF8(ByteBuffer.wrap(bytes));
+    }
+
+    /** Decodes a memory-mapped file, without copying it to the heap first. */
+    public static String readLatin1OrUTF8(File file)
+        throws IOException {
+        return readLatin1OrUTF8(map(file));
+    }
+
+    /** Like {@link #readLatin1OrUTF8(byte[])}, for the remaining bytes of a buffer. The buffer is not modified. */
+    public static String readLatin1OrUTF8(ByteBuffer bytes) {
+        int pos = bytes.position();
+
         try {
-            if (bytes.length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+            if (bytes.remaining() >= 3 &&
+                bytes.get(pos) == (byte) 0xEF && bytes.get(pos + 1) == (byte) 0xBB && bytes.get(pos + 2) == (byte) 0xBF) {
                 // Skip BOM, parse UTF-8 stricly
-                return utf8Decoder.get().decode(ByteBuffer.wrap(bytes, 3, bytes.length - 3)).toString();
+                ByteBuffer data = bytes.duplicate();
+                data.position(pos + 3);
+                return utf8Decoder.get().decode(data).toString();
             }
         }
         catch (CharacterCodingException ignored) {
             // Fall back to Latin-1
         }
 
-        return new String(bytes, latin1);
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + pos, bytes.remaining(), latin1);
+        }
+        else { // One bulk copy beats CharsetDecoder's CharBuffer plus toString()
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.duplicate().get(copy);
+            return new String(copy, latin1);
+        }
+    }
+
+    /**
+     * Returns a reader that decodes like {@link #readLatin1OrUTF8(byte[])}, but incrementally and in constant memory.
+     * The first 8 KiB are checked before any text is returned, so shorter inputs fall back to Latin-1 exactly like
+     * {@link #readLatin1OrUTF8(byte[])} does. Text that has been returned cannot be re-decoded, though, so invalid
+     * UTF-8 after that makes the reader throw {@link java.nio.charset.MalformedInputException}.
+     *
+     * @param is The stream to decode.
+     * @return   A reader. Closing it closes the stream.
+     */
+    public static Reader latin1OrUTF8Reader(InputStream is) {
+        return new Latin1OrUTF8Reader(is);
     }
 
     public static byte[] writeLatin1OrUTF8(String string) {
-        if (latin1Encoder.get().canEncode(string)) {
+        int length = string.length();
+
+        if (indexOfNonLatin1(string) == length) {
             return string.getBytes(latin1);
         }
+
+        ByteBuffer result = ByteBuffer.allocate(3 + utf8Length(string));
+
+        result.put(utf8BOM);
+        encodeUTF8(string, 0, length, result);
+        return result.array();
+    }
+
+    /**
+     * Encodes like {@link #writeLatin1OrUTF8(String)}, in a single pass, into a caller-supplied array. Latin-1 is
+     * written until the first character that needs UTF-8; the Latin-1 prefix is then re-encoded in place, after a
+     * BOM.
+     *
+     * @param string The text to encode.
+     * @param dst    Where to write the encoded bytes.
+     * @param off    Where in <code>dst</code> to start writing.
+     * @return       The number of bytes written.
+     * @throws BufferOverflowException If the encoded text does not fit.
+     */
+    public static int writeLatin1OrUTF8(CharSequence string, byte[] dst, int off) {
+        return writeLatin1OrUTF8(string, ByteBuffer.wrap(dst, off, dst.length - off));
+    }
+
+    /**
+     * Like {@link #writeLatin1OrUTF8(CharSequence, byte[], int)}, but writes to a buffer and advances its position.
+     *
+     * @throws BufferOverflowException If the encoded text does not fit. The buffer's position is then unchanged.
+     */
+    public static int writeLatin1OrUTF8(CharSequence string, ByteBuffer dst) {
+        int length = string.length();
+        int start  = dst.position();
+        int next   = encodeLatin1(string, 0, length, dst);
+
+        if (next < length && string.charAt(next) > 0xff) { // Switch to BOM + UTF-8, back to front
+            int end = dst.position() + utf8BOM.length;
+
+            for (int i = start; i < dst.position(); ++i) {
+                end += dst.get(i) < 0 ? 1 : 0;
+            }
+
+            if (end > dst.limit()) {
+                dst.position(start);
+                throw new BufferOverflowException();
+            }
+
+            for (int s = dst.position() - 1, d = end - 1; s >= start; --s) {
+                byte b = dst.get(s);
+
+                if (b >= 0) {
+                    dst.put(d--, b);
+                }
+                else {
+                    dst.put(d--, (byte) (0x80 | (b & 0x3f)));
+                    dst.put(d--, (byte) (0xc0 | ((b & 0xff) >> 6)));
+                }
+            }
+
+            for (int i = 0; i < utf8BOM.length; ++i) {
+                dst.put(start + i, utf8BOM[i]);
+            }
+
+            dst.position(end);
+            next = encodeUTF8(string, next, length, dst);
+        }
+
+        if (next < length) {
+            dst.position(start);
+            throw new BufferOverflowException();
+        }
+
+        return dst.position() - start;
+    }
+
+    /**
+     * Encodes like {@link #writeLatin1OrUTF8(String)}, straight to a stream, through a small per-thread buffer.
+     *
+     * @param string The text to encode.
+     * @param os     Where to write the encoded bytes.
+     * @return       The number of bytes written.
+     * @throws IOException On I/O errors.
+     */
+    public static int writeLatin1OrUTF8(CharSequence string, OutputStream os)
+        throws IOException {
+        int length  = string.length();
+        boolean utf = indexOfNonLatin1(string) < length;
+        ByteBuffer buffer = encodeBuffer.get();
+        int written = 0;
+
+        buffer.clear();
+
+        if (utf) {
+            buffer.put(utf8BOM);
+        }
+
+        for (int next = 0; next < length || buffer.position() != 0; ) {
+            next = utf ? encodeUTF8(string, next, length, buffer) : encodeLatin1(string, next, length, buffer);
+            os.write(buffer.array(), 0, buffer.position());
+            written += buffer.position();
+            buffer.clear();
+        }
+
+        return written;
+    }
+
+    private static final byte[] utf8BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+
+    private static final ThreadLocal<ByteBuffer> encodeBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override public ByteBuffer initialValue() {
+            return ByteBuffer.allocate(1024);
+        }
+    };
+
+    private static int indexOfNonLatin1(CharSequence string) {
+        int length = string.length(), i = 0;
+
+        while (i < length && string.charAt(i) <= 0xff) {
+            ++i;
+        }
+
+        return i;
+    }
+
+    /** The UTF-8 length of a string, encoded like {@link #encodeUTF8}. */
+    private static int utf8Length(CharSequence string) {
+        int length = string.length(), result = 0;
+
+        for (int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+
+            if (c < 0x80) {
+                result += 1;
+            }
+            else if (c < 0x800) {
+                result += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                result += 4;
+                ++i;
+            }
+            else {
+                result += isSurrogate(c) ? 1 : 3;
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    /** Encodes chars as Latin-1 until a char needs UTF-8 or dst is full. Returns the index of the next char. */
+    private static int encodeLatin1(CharSequence string, int from, int to, ByteBuffer dst) {
+        int i = from, end = Math.min(to, from + dst.remaining());
+
+        if (dst.hasArray()) {
+            byte[] array = dst.array();
+            int offset   = dst.arrayOffset() + dst.position() - from;
+
+            while (i < end) {
+                char c = string.charAt(i);
+
+                if (c > 0xff) {
+                    break;
+                }
+
+                array[offset + i++] = (byte) c;
+            }
+
+            dst.position(dst.position() + i - from);
+        }
         else {
-            return ("\ufeff" + string).getBytes(utf8);
+            while (i < end) {
+                char c = string.charAt(i);
+
+                if (c > 0xff) {
+                    break;
+                }
+
+                dst.put((byte) c);
+                ++i;
+            }
+        }
+
+        return i;
+    }
+
+    /**
+     * Encodes chars as UTF-8 until dst is full, and returns the index of the next char. Unpaired surrogates are
+     * written as '?', like {@link String#getBytes(Charset)} does.
+     */
+    private static int encodeUTF8(CharSequence string, int from, int to, ByteBuffer dst) {
+        int i = from;
+
+        for (; i < to; ++i) {
+            char c = string.charAt(i);
+
+            if (c < 0x80) {
+                if (!dst.hasRemaining()) {
+                    break;
+                }
+
+                dst.put((byte) c);
+            }
+            else if (c < 0x800) {
+                if (dst.remaining() < 2) {
+                    break;
+                }
+
+                dst.put((byte) (0xc0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if (!isSurrogate(c)) {
+                if (dst.remaining() < 3) {
+                    break;
+                }
+
+                dst.put((byte) (0xe0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                dst.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(string.charAt(i + 1))) {
+                if (dst.remaining() < 4) {
+                    break;
+                }
+
+                int cp = Character.toCodePoint(c, string.charAt(++i));
+
+                dst.put((byte) (0xf0 | (cp >> 18)));
+                dst.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                dst.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                dst.put((byte) (0x80 | (cp & 0x3f)));
+            }
+            else {
+                if (!dst.hasRemaining()) {
+                    break;
+                }
+
+                dst.put((byte) '?');
+            }
+        }
+
+        return i;
+    }
+
+    /**
+     * Maps a whole file into memory, read-only. The mapping stays valid until the buffer is garbage collected.
+     *
+     * @param file The file to map.
+     * @return     The mapped file.
+     * @throws IOException On I/O errors, or if the file is 2 GB or larger; use {@link #map(File, long, int)} for those.
+     */
+    public static MappedByteBuffer map(File file)
+        throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map as a single buffer");
+            }
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally {
+            raf.close(); // Mapping remains valid
+        }
+    }
+
+    /**
+     * Maps part of a file into memory, read-only, so that files of any size can be processed one window at a time:
+     * <pre>
+     * for (long position = 0; position &lt; file.length(); position += windowSize) {
+     *     MappedByteBuffer window = IOUtils.map(file, position, windowSize);
+     *     ...
+     * }
+     * </pre>
+     * Mapping only reserves address space; the pages are read from the page cache as they are accessed. A window
+     * stays mapped until it is garbage collected, so do not hold on to windows that are done with.
+     *
+     * @param file     The file to map.
+     * @param position Where the window starts.
+     * @param size     The maximum size of the window. It is shorter at the end of the file.
+     * @return         The window. Empty if <code>position</code> is at or past the end of the file.
+     * @throws IOException On I/O errors.
+     */
+    public static MappedByteBuffer map(File file, long position, int size)
+        throws IOException {
+        if (position < 0 || size < 0) {
+            throw new IllegalArgumentException("Negative position or size");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, Math.min(position, length),
+                               Math.max(0, Math.min(size, length - position)));
+        }
+        finally {
+            raf.close(); // Mapping remains valid
+        }
+    }
+
+    private static class Latin1OrUTF8Reader extends Reader {
+        private final InputStream is;
+        private final ByteBuffer bytes = ByteBuffer.allocate(8192); // Filling between calls
+        private final CharBuffer chars = CharBuffer.allocate(8192); // Draining between calls
+        private CharsetDecoder decoder;
+        private boolean endOfInput, flushed;
+
+        Latin1OrUTF8Reader(InputStream is) {
+            this.is = is;
+            chars.flip();
+        }
+
+        @Override public int read() throws IOException {
+            return chars.hasRemaining() || fill() ? chars.get() : -1;
+        }
+
+        @Override public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            else if (!chars.hasRemaining() && !fill()) {
+                return -1;
+            }
+
+            int count = Math.min(len, chars.remaining());
+            chars.get(cbuf, off, count);
+            return count;
+        }
+
+        @Override public boolean ready() throws IOException {
+            return chars.hasRemaining() || is.available() > 0;
+        }
+
+        @Override public void close() throws IOException {
+            is.close();
+        }
+
+        /** Decodes more text into chars. Returns false on EOF. */
+        private boolean fill() throws IOException {
+            while (!flushed) {
+                chars.clear();
+                readBytes(decoder == null);
+
+                if (decoder == null) {
+                    decoder = sniff();
+                }
+
+                bytes.flip();
+                CoderResult result = decoder.decode(bytes, chars, endOfInput);
+                bytes.compact();
+
+                if (endOfInput && result.isUnderflow()) {
+                    result  = decoder.flush(chars);
+                    flushed = result.isUnderflow();
+                }
+
+                if (result.isError()) {
+                    result.throwException();
+                }
+
+                chars.flip();
+
+                if (chars.hasRemaining()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void readBytes(boolean fully) throws IOException {
+            do {
+                int count = is.read(bytes.array(), bytes.position(), bytes.remaining());
+
+                if (count < 0) {
+                    endOfInput = true;
+                }
+                else {
+                    bytes.position(bytes.position() + count);
+                }
+            } while (fully && !endOfInput && bytes.hasRemaining());
+        }
+
+        /** Picks a decoder, the same way as readLatin1OrUTF8(), by trying to decode the whole first block. */
+        private CharsetDecoder sniff() {
+            ByteBuffer block = (ByteBuffer) bytes.duplicate().flip();
+
+            if (block.remaining() >= 3 &&
+                block.get(0) == (byte) 0xEF && block.get(1) == (byte) 0xBB && block.get(2) == (byte) 0xBF) {
+                CharsetDecoder utf8Decoder = utf8.newDecoder();
+
+                block.position(3);
+
+                if (!utf8Decoder.decode(block, chars, endOfInput).isError() &&
+                    (!endOfInput || !utf8Decoder.flush(chars).isError())) {
+                    // Skip BOM, parse UTF-8 strictly
+                    chars.clear();
+                    bytes.flip();
+                    bytes.position(3);
+                    bytes.compact();
+                    return utf8Decoder.reset();
+                }
+
+                chars.clear();
+            }
+
+            return latin1.newDecoder();
         }
     }
 
@@ -98,26 +557,148 @@ public abstract class IOUtils {
         }
     }
 
+    /**
+     * Reads into the remaining part of a buffer, which may be direct.
+     *
+     * @param is  The stream to read from.
+     * @param dst The buffer to fill. Its position is advanced past the bytes read, even on EOF.
+     * @throws EOFException If EOF is reached before the buffer is full.
+     * @throws IOException On I/O errors.
+     */
+    public static void readFully(InputStream is, ByteBuffer dst)
+        throws IOException {
+        int expected = dst.remaining(), cnt;
+
+        if (dst.hasArray()) {
+            while (dst.hasRemaining() && (cnt = is.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining())) >= 0) {
+                dst.position(dst.position() + cnt);
+            }
+        }
+        else if (is instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) is).getChannel();
+
+            while (dst.hasRemaining() && channel.read(dst) >= 0) {
+                // Read directly into the buffer
+            }
+        }
+        else {
+            byte[] buffer = BufferPool.shared().acquire(Math.min(dst.remaining(), 8192));
+
+            try {
+                while (dst.hasRemaining() && (cnt = is.read(buffer, 0, Math.min(dst.remaining(), buffer.length))) >= 0) {
+                    dst.put(buffer, 0, cnt);
+                }
+            }
+            finally {
+                BufferPool.shared().release(buffer);
+            }
+        }
+
+        if (dst.hasRemaining()) {
+            throw new EOFException("EOF while reading " + expected + " bytes; received only " + (expected - dst.remaining()));
+        }
+    }
+
     public static byte[] readFully(InputStream is)
         throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        copyStream(is, baos);
-        return baos.toByteArray();
+        return readFully(is, -1);
     }
 
-    public static String readUntilControl(PushbackInputStream is)
+    /**
+     * Reads a stream until EOF. If the size is known, the array is allocated once and never copied, up to 1 MiB.
+     * Beyond that, the array grows as data arrives, towards the expected size, so a wrong size hint never allocates
+     * more than twice the data length.
+     *
+     * @param is       The stream to read from.
+     * @param sizeHint The expected number of bytes, or -1 to use the remaining file size for
+     *                 {@link FileInputStream}s and {@link InputStream#available()} for other streams.
+     * @return         All bytes until EOF.
+     * @throws IOException On I/O errors.
+     */
+    public static byte[] readFully(InputStream is, long sizeHint)
+        throws IOException {
+        ByteBuffer data  = readFullyWrapped(is, sizeHint);
+        byte[]     array = data.array();
+
+        return data.limit() == array.length ? array : Arrays.copyOf(array, data.limit());
+    }
+
+    /**
+     * Like {@link #readFully(InputStream, long)}, but skips the final copy to an array of the exact size.
+     *
+     * @return A heap buffer with position 0 and the data length as limit. Its array may be larger.
+     */
+    public static ByteBuffer readFullyWrapped(InputStream is, long sizeHint)
         throws IOException {
-        StringBuffer sb = new StringBuffer();
+        long   expected = sizeHint >= 0 ? sizeHint : expectedSize(is);
+        byte[] buffer   = new byte[(int) Math.min(expected, MAX_INITIAL_SIZE)];
+        int length = 0, cnt;
 
         while (true) {
-            char c = (char) is.read();
+            if (length == buffer.length) { // Full: check for EOF before growing
+                int b = is.read();
+
+                if (b < 0) {
+                    break;
+                }
+                else if (length == MAX_ARRAY_SIZE) {
+                    throw new IOException("Stream too large for an array");
+                }
+
+                long size = Math.max(8192, length * 2L);
+
+                if (expected > length) {
+                    size = Math.min(size, expected);
+                }
+
+                buffer = Arrays.copyOf(buffer, (int) Math.min(size, MAX_ARRAY_SIZE));
+                buffer[length++] = (byte) b;
+            }
+
+            if ((cnt = is.read(buffer, length, buffer.length - length)) < 0) {
+                break;
+            }
+
+            length += cnt;
+        }
+
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    private static long expectedSize(InputStream is)
+        throws IOException {
+        if (is instanceof FileInputStream) {
+            try {
+                FileChannel channel = ((FileInputStream) is).getChannel();
+
+                return Math.max(0, channel.size() - channel.position());
+            }
+            catch (IOException ignored) {
+                // Not a regular file; fall back to available()
+            }
+        }
+
+        return is.available();
+    }
+
+    /**
+     * Reads Latin-1 text up to, but not including, the next control character or EOF.
+     *
+     * @deprecated Reads one byte at a time. Use {@link ControlTokenizer} instead.
+     */
+    @Deprecated
+    public static String readUntilControl(PushbackInputStream is)
+        throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
 
-            if (Character.isISOControl(c)) {
+        while ((c = is.read()) >= 0) {
+            if (ByteMatcher.control().matches((byte) c)) {
                 is.unread(c);
                 break;
             }
             else {
-                sb.append(c);
+                sb.append((char) c);
             }
         }
 
@@ -126,20 +707,115 @@ public abstract class IOUtils {
 
     public static long copyStream(InputStream is, OutputStream os)
       throws IOException {
-      byte buffer[] = new byte[8192];
+      FileChannel in  = is instanceof FileInputStream  ? ((FileInputStream)  is).getChannel() : null;
+      FileChannel out = os instanceof FileOutputStream ? ((FileOutputStream) os).getChannel() : null;
+
+      if (in != null && out != null) { // Let the kernel copy
+        os.flush();
+        return copyChannel(in, out);
+      }
+
+      byte buffer[] = BufferPool.shared().acquire(8192);
       long length = 0;
 
-      int bytesRead;
+      try {
+        int bytesRead;
 
-      while ((bytesRead = is.read(buffer)) != -1) {
-        os.write(buffer, 0, bytesRead);
-        length += bytesRead;
+        while ((bytesRead = is.read(buffer)) != -1) {
+          os.write(buffer, 0, bytesRead);
+          length += bytesRead;
+        }
+      }
+      finally {
+        BufferPool.shared().release(buffer);
       }
 
       os.flush();
       return length;
     }
 
+    /**
+     * Copies a channel to another, until EOF. If the source is a regular file, the data is moved by
+     * {@link FileChannel#transferTo}, and if only the destination is, by {@link FileChannel#transferFrom}, so that
+     * the kernel can copy it without passing it through user space (<code>sendfile</code>,
+     * <code>copy_file_range</code>). The file channel's position is advanced past the copied data. Pipes, devices
+     * and files that do not report their size (such as <code>/proc</code> files) are copied through a buffer.
+     *
+     * @param in  The channel to read from. Must be in blocking mode.
+     * @param out The channel to write to. Must be in blocking mode.
+     * @return    The number of bytes copied.
+     * @throws IOException On I/O errors.
+     */
+    public static long copyChannel(ReadableByteChannel in, WritableByteChannel out)
+        throws IOException {
+        long length = 0, count, remaining;
+
+        if (in instanceof FileChannel) {
+            FileChannel fc = (FileChannel) in;
+
+            if ((remaining = remaining(fc)) > 0) {
+                long position = fc.position();
+
+                try { // Stop at the size seen now, or early if the file is shorter than it claims
+                    while (length < remaining && (count = fc.transferTo(position + length, remaining - length, out)) > 0) {
+                        length += count;
+                    }
+                }
+                finally {
+                    fc.position(position + length);
+                }
+
+                if (length == remaining && remaining(fc) == 0) {
+                    return length; // At EOF, so there is nothing left for the loop below
+                }
+            }
+        }
+        else if (out instanceof FileChannel) {
+            FileChannel fc = (FileChannel) out;
+
+            if (remaining(fc) >= 0) {
+                long position = fc.position();
+
+                try {
+                    while ((count = fc.transferFrom(in, position + length, Integer.MAX_VALUE)) > 0) {
+                        length += count;
+                    }
+                }
+                finally {
+                    fc.position(position + length);
+                }
+            }
+        }
+
+        // Whatever the kernel did not copy
+        byte[] array = BufferPool.shared().acquire(8192);
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(array);
+
+            while (in.read(buffer) >= 0 || buffer.position() != 0) {
+                buffer.flip();
+                length += out.write(buffer);
+                buffer.compact();
+            }
+        }
+        finally {
+            BufferPool.shared().release(array);
+        }
+
+        return length;
+    }
+
+    /** Returns the number of bytes after the position of a seekable file channel, or -1 if it is not seekable. */
+    private static long remaining(FileChannel fc) {
+        try {
+            return Math.max(0, fc.size() - fc.position());
+        }
+        catch (IOException ex) {
+            return -1; // A pipe or a device
+        }
+    }
+
     public static long copyStream(InputStream is, boolean closeIS, OutputStream os, boolean closeOS)
         throws IOException {
         try {
@@ -153,6 +829,12 @@ public abstract class IOUtils {
 
     /**
      * Helper method to copy an InputStream to an OutputStream, with timeout and stop byte support.
+     * <p>
+     * Only a {@link Pipe.Source} can block with a deadline; other streams are polled with a 1-10 ms back-off while
+     * {@link InputStream#available()} is zero. Without stop bytes, reads are always done in bulk. With stop bytes,
+     * nothing past the stop byte may be consumed, so only a {@link Pipe.Source} or a stream that supports mark/reset
+     * is read in bulk, and other streams (such as socket streams) are read one byte at a time. Wrap those in a
+     * {@link java.io.BufferedInputStream} to get bulk reads.
      *
      * @param is           The InputStream to read from.
      * @param os           The OutputStream to write to.
@@ -178,10 +860,11 @@ public abstract class IOUtils {
 
                 @Override public int read() throws IOException {
                     final Thread[] thread = { Thread.currentThread() };
+                    HashedWheelTimer.Timeout timeout = null;
 
                     try {
                         if (wrapped.available() == 0) {
-                            timer.schedule(new TimerTask() {
+                            timeout = HashedWheelTimer.shared().schedule(new Runnable() {
                                 @Override public void run() {
                                     synchronized (thread) {
                                         if (thread[0] != null) {
@@ -189,12 +872,16 @@ public abstract class IOUtils {
                                         }
                                     }
                                 }
-                            }, Math.max(0, expires - System.currentTimeMillis()));
+                            }, expires - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
                         }
 
                         return wrapped.read();
                     }
                     finally {
+                        if (timeout != null) {
+                            timeout.cancel();
+                        }
+
                         synchronized (thread) {
                             thread[0] = null;
                             Thread.interrupted(); // Clear interrupted flag, if set
@@ -204,53 +891,101 @@ public abstract class IOUtils {
             };
         }
 
+        ByteMatcher stop = stopChars.length != 0 ? ByteMatcher.anyOf(stopChars) : null;
         long readBytes = 0;
-        byte[] buffer = new byte[1];
+        long delay     = 1;
+        byte[] buffer  = BufferPool.shared().acquire((int) Math.max(1, Math.min(len, 8192)));
 
-        loop: while (readBytes < len) {
-            int read;
+        try {
+            while (readBytes < len) {
+                int max = (int) Math.min(buffer.length, len - readBytes);
+                int read;
 
-            try {
-                read = is.available() > 0 ? is.read(buffer) : 0;
-            }
-            catch (InterruptedIOException ex) {
-                read = 0;
-            }
-            catch (IOException ex) {
-                if (readBytes != 0) {
-                    read = -1; // Return what we've read so far
+                try {
+                    if (is instanceof Pipe.Source) { // Blocks until data arrives or the deadline passes
+                        read = ((Pipe.Source) is).readUntil(buffer, 0, max, stop,
+                                                            expires - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    }
+                    else {
+                        read = readUntil(is, buffer, Math.min(max, is.available()), stop);
+                    }
                 }
-                else {
-                    throw ex; // Error on first read: abort
+                catch (InterruptedIOException ex) {
+                    read = 0;
+                }
+                catch (IOException ex) {
+                    if (readBytes != 0) {
+                        read = -1; // Return what we've read so far
+                    }
+                    else {
+                        throw ex; // Error on first read: abort
+                    }
                 }
-            }
 
-            if (read == 1) {
-                os.write(buffer);
-                readBytes++;
+                if (read > 0) {
+                    os.write(buffer, 0, read);
+                    readBytes += read;
+                    delay      = 1;
 
-                for (byte stopChar : stopChars) {
-                    if (buffer[0] == stopChar) {
-                        break loop;
+                    if (stop != null && stop.matches(buffer[read - 1])) {
+                        break;
                     }
                 }
-            }
-            else if (read < 0) {
-                return false; // EOF
-            }
-            else if (System.currentTimeMillis() > expires) {
-                return false; // Timeout
-            }
-            else {
-                try {
-                    Thread.sleep(10);
+                else if (read < 0) {
+                    return false; // EOF
+                }
+                else if (System.currentTimeMillis() >= expires) {
+                    return false; // Timeout
                 }
-                catch (InterruptedException ignored) {
-                    throw new InterruptedIOException();
+                else if (!(is instanceof Pipe.Source)) { // No way to block with a deadline, so poll with back-off
+                    try {
+                        Thread.sleep(Math.min(delay, Math.max(1, expires - System.currentTimeMillis())));
+                        delay = Math.min(delay * 2, 10);
+                    }
+                    catch (InterruptedException ignored) {
+                        throw new InterruptedIOException();
+                    }
                 }
             }
         }
+        finally {
+            BufferPool.shared().release(buffer);
+        }
 
         return true;
     }
+
+    /**
+     * Reads at most <code>max</code> bytes, but never past the first stop byte. Streams that support mark/reset are
+     * read in bulk; others are read one byte at a time, unless <code>stop</code> is null.
+     */
+    private static int readUntil(InputStream is, byte[] buffer, int max, ByteMatcher stop)
+        throws IOException {
+        if (max <= 0) {
+            return 0;
+        }
+        else if (stop == null) {
+            return is.read(buffer, 0, max);
+        }
+        else if (!is.markSupported()) {
+            return is.read(buffer, 0, 1);
+        }
+
+        is.mark(max);
+
+        int read  = is.read(buffer, 0, max);
+        int found = read > 0 ? ByteUtils.indexOf(buffer, 0, read, stop) : -1;
+
+        if (found >= 0 && found + 1 < read) { // Put back the bytes after the stop byte
+            is.reset();
+
+            for (int pos = 0, cnt; pos <= found; pos += cnt) {
+                if ((cnt = is.read(buffer, pos, found + 1 - pos)) < 0) {
+                    throw new EOFException("EOF while re-reading marked bytes");
+                }
+            }
+        }
+
+        return found >= 0 ? found + 1 : read;
+    }
 }
@@ -1,144 +1,1676 @@
 package com.onslip.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class Pipe {
+    /** What a writer does when a bounded {@link Source}, or a reader of a bounded {@link Broadcast}, is full. */
+    public enum Overflow {
+        /** Block until the reader has made room. */
+        BLOCK,
+
+        /**
+         * Block until the reader has made room, but throw {@link InterruptedIOException} when the timeout expires. Not
+         * supported by {@link Broadcast}.
+         */
+        TIMEOUT,
+
+        /** Throw an {@link IOException} immediately, without writing anything. Not supported by {@link Broadcast}. */
+        FAIL,
+
+        /**
+         * Discard the oldest buffered data to make room. Data that the reader is busy reading is never discarded, so
+         * the limit may be exceeded temporarily, or the writer may have to wait for a bounded pipe.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Close the reader's end. The reader will get an {@link IOException}. A {@link Broadcast} continues without
+         * the reader; a plain {@link Sink} throws an {@link IOException}.
+         */
+        DISCONNECT,
+    }
+
     public static class Source extends InputStream {
         private Sink sink;
-        private LinkedBlockingQueue<byte[]> queuedChunks = new LinkedBlockingQueue<byte[]>();
-        private InputStream currentInputStream = new ByteArrayInputStream(new byte[0]);
-        private final Object currentInputStreamMutex = new Object();
-        private volatile boolean endOfFile;
+        private final Buffer buffer;
+        private final Overflow overflow;
+        private final long timeout;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull  = lock.newCondition();
+        private final ReentrantLock readLock = new ReentrantLock();
+        private final ReentrantLock writeLock = new ReentrantLock(); // Don't interleave partial writes
+        private boolean endOfFile;
         private volatile boolean closed;
+        private volatile Counters counters;
+        private volatile Publication publication;
 
         public Source() {
+            this(new ChunkBuffer(), Overflow.BLOCK, 0);
         }
 
         public Source(Sink s) throws IOException {
+            this();
+            connect(s);
+        }
+
+        /**
+         * Creates a bounded pipe, backed by a preallocated ring buffer. Writers block when the buffer is full.
+         *
+         * @param capacity The size of the ring buffer, in bytes.
+         */
+        public Source(int capacity) {
+            this(capacity, Overflow.BLOCK, 0);
+        }
+
+        /**
+         * Creates a bounded pipe, backed by a preallocated ring buffer.
+         *
+         * @param capacity The size of the ring buffer, in bytes.
+         * @param overflow What writers should do when the buffer is full.
+         * @param timeout  Write time-out, in milliseconds. Only used by {@link Overflow#TIMEOUT}.
+         */
+        public Source(int capacity, Overflow overflow, long timeout) {
+            this(new RingBuffer(capacity), overflow, timeout);
+        }
+
+        public Source(Sink s, int capacity, Overflow overflow, long timeout) throws IOException {
+            this(capacity, overflow, timeout);
+            connect(s);
+        }
+
+        /**
+         * Creates an unbounded pipe that keeps at most <code>memoryLimit</code> bytes on the heap. Data beyond that
+         * is spilled to memory-mapped temporary files. Files that have been read are deleted, except for one that is
+         * kept for the next spill, and the rest when the pipe is closed.
+         *
+         * @param memoryLimit    The maximum number of bytes to keep in memory.
+         * @param spillDirectory Where to create the temporary files, or null for the default temporary directory.
+         */
+        public Source(int memoryLimit, File spillDirectory) {
+            this(new SpillBuffer(memoryLimit, spillDirectory), Overflow.BLOCK, 0);
+        }
+
+        public Source(Sink s, int memoryLimit, File spillDirectory) throws IOException {
+            this(memoryLimit, spillDirectory);
             connect(s);
         }
 
+        private Source(Buffer buffer, Overflow overflow, long timeout) {
+            this.buffer   = buffer;
+            this.overflow = overflow;
+            this.timeout  = timeout;
+        }
+
         public synchronized void connect(Sink s) throws IOException {
             synchronized (s) {
-                if (sink != null || s.source != null) {
+                if (sink != null) {
                     throw new IOException("Pipe already connected");
                 }
 
-                sink     = s;
-                s.source = this;
+                s.attach(this);
+                sink = s;
+
+                if (s.closed) {
+                    receiveEOF();
+                }
             }
         }
 
         @Override public synchronized void close() throws IOException {
-            if (sink != null) {
-                sink.close(); // Writing no longer allowed
+            lock.lock();
+
+            try {
+                closed = true;
+                buffer.close();
+                notEmpty.signalAll(); // Wake up blocked reader (if any)
+                notFull.signalAll();  // Wake up blocked writer (if any)
+            }
+            finally {
+                lock.unlock();
             }
 
-            closed = true;
-            receive(new byte[0] /* EOF */); // Wake up blocked reader (if any)
+            publish();
+
+            if (sink != null) {
+                sink.detach(this); // Writing no longer allowed
+            }
         }
 
         @Override public int read() throws IOException {
-            return currentInputStream(true).read();
-		}
+            readLock.lock();
+
+            try {
+                ByteBuffer data = nextData(0, -1);
+
+                if (data == null) {
+                    return -1;
+                }
+
+                int b = data.get() & 0xff;
+                nextData(1, 0);
+                countRead();
+                return b;
+            }
+            finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override public int read(byte b[], int off, int len) throws IOException {
+            return read(b, off, len, null, -1);
+        }
+
+        /**
+         * Reads like {@link #read(byte[], int, int)}, but gives up if no data arrives before the timeout expires.
+         *
+         * @param b       The buffer into which the data is read.
+         * @param off     The start offset in array <code>b</code>.
+         * @param len     The maximum number of bytes to read.
+         * @param timeout How long to wait for data.
+         * @param unit    The unit of <code>timeout</code>.
+         * @return        The number of bytes read, 0 if the timeout expired or -1 on EOF.
+         * @throws IOException On I/O errors, or if the pipe was closed.
+         */
+        public int read(byte b[], int off, int len, long timeout, TimeUnit unit) throws IOException {
+            return read(b, off, len, null, Math.max(0, unit.toNanos(timeout)));
+        }
+
+        /**
+         * Reads like {@link #read(byte[], int, int, long, TimeUnit)}, but stops after the first match, which is
+         * included in the bytes read. Anything after it is left in the pipe.
+         *
+         * @param b       The buffer into which the data is read.
+         * @param off     The start offset in array <code>b</code>.
+         * @param len     The maximum number of bytes to read.
+         * @param stop    What to stop after. Sequence matchers keep partial matches between calls.
+         * @param timeout How long to wait for data.
+         * @param unit    The unit of <code>timeout</code>.
+         * @return        The number of bytes read, 0 if the timeout expired or -1 on EOF.
+         * @throws IOException On I/O errors, or if the pipe was closed.
+         */
+        public int readUntil(byte b[], int off, int len, ByteMatcher stop, long timeout, TimeUnit unit)
+            throws IOException {
+            return read(b, off, len, stop, Math.max(0, unit.toNanos(timeout)));
+        }
+
+        /**
+         * Waits until a read would not block, i.e. until data is available or EOF has been reached.
+         *
+         * @param timeout How long to wait.
+         * @param unit    The unit of <code>timeout</code>.
+         * @return        true if a read would not block, false if the timeout expired.
+         * @throws IOException On I/O errors, or if the pipe was closed.
+         */
+        public boolean awaitAvailable(long timeout, TimeUnit unit) throws IOException {
+            checkOpen();
+            lock.lock();
+
+            try {
+                awaitData(Math.max(0, unit.toNanos(timeout)));
+                return buffer.available() != 0 || endOfFile;
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Reads exactly one chunk, as written by a single call to one of the {@link Sink} write methods, without
+         * copying it. If part of the chunk has already been read as a stream, only the rest is returned. Only
+         * unbounded pipes without a memory limit preserve write boundaries.
+         *
+         * @return A read-only view of the chunk, or null on EOF.
+         * @throws IOException On I/O errors, or if the pipe was closed.
+         * @throws UnsupportedOperationException If the pipe is bounded or spills to disk.
+         */
+        public ByteBuffer readMessage() throws IOException {
+            ArrayList<ByteBuffer> messages = new ArrayList<ByteBuffer>(1);
+
+            return drainMessages(messages, 1) > 0 ? messages.get(0) : null;
+        }
+
+        /**
+         * Like {@link #readMessage()}, but blocks only until at least one chunk is available, and then reads up to
+         * <code>max</code> chunks at once.
+         *
+         * @param messages Where to add the read-only chunk views.
+         * @param max      The maximum number of chunks to read.
+         * @return         The number of chunks read, or -1 on EOF.
+         * @throws IOException On I/O errors, or if the pipe was closed.
+         * @throws UnsupportedOperationException If the pipe is bounded or spills to disk.
+         */
+        public int drainMessages(Collection<? super ByteBuffer> messages, int max) throws IOException {
+            if (!(buffer instanceof ChunkBuffer)) {
+                throw new UnsupportedOperationException("Pipe does not preserve write boundaries");
+            }
+
+            readLock.lock();
+
+            try {
+                checkOpen();
+                lock.lock();
+
+                try {
+                    awaitData(max > 0 ? -1 : 0);
+
+                    int count = 0;
+                    long bytes = 0;
+                    ByteBuffer message;
+
+                    while (count < max && (message = ((ChunkBuffer) buffer).poll()) != null) {
+                        messages.add(message.asReadOnlyBuffer());
+                        bytes += message.remaining();
+                        ++count;
+                    }
+
+                    if (count > 0) {
+                        Counters c = counters;
+
+                        if (c != null) {
+                            c.bytesRead.addAndGet(bytes);
+                            c.chunksRead.addAndGet(count);
+                            c.reads.incrementAndGet();
+                        }
+
+                        notFull.signalAll();
+                    }
+
+                    return count == 0 && endOfFile ? -1 : count;
+                }
+                catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+            finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override public long skip(long n) throws IOException {
+            readLock.lock();
+
+            try {
+                ByteBuffer data = n > 0 ? nextData(0, -1) : null;
+                long skipped = 0;
+
+                while (data != null && skipped < n) {
+                    int count = (int) Math.min(n - skipped, data.remaining());
+
+                    data.position(data.position() + count);
+                    skipped += count;
+                    data = nextData(count, 0);
+                }
+
+                return skipped;
+            }
+            finally {
+                readLock.unlock();
+            }
+        }
+
+        public long transferTo(OutputStream out) throws IOException {
+            readLock.lock();
+
+            try {
+                ByteBuffer data = nextData(0, -1);
+                long transferred = 0;
+
+                while (data != null) {
+                    int count = data.remaining();
+
+                    write(out, data);
+                    transferred += count;
+                    data = nextData(count, -1);
+                }
+
+                return transferred;
+            }
+            finally {
+                readLock.unlock();
+            }
+        }
+
+        /** Returns a channel view of this pipe end, which reads directly into the caller's buffers. */
+        public ScatteringByteChannel channel() {
+            return new ScatteringByteChannel() {
+                @Override public int read(ByteBuffer dst) throws IOException {
+                    return (int) Source.this.read(new ByteBuffer[] { dst }, 0, 1);
+                }
+
+                @Override public long read(ByteBuffer[] dsts) throws IOException {
+                    return Source.this.read(dsts, 0, dsts.length);
+                }
+
+                @Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+                    if (offset < 0 || length < 0 || length > dsts.length - offset) {
+                        throw new IndexOutOfBoundsException();
+                    }
+
+                    return Source.this.read(dsts, offset, length);
+                }
+
+                @Override public boolean isOpen() {
+                    return !closed;
+                }
+
+                @Override public void close() throws IOException {
+                    Source.this.close();
+                }
+            };
+        }
+
+        private long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            long wanted = 0;
+
+            for (int i = offset; i < offset + length; ++i) {
+                wanted += dsts[i].remaining();
+            }
+
+            readLock.lock();
+
+            try {
+                ByteBuffer data = nextData(0, wanted != 0 ? -1 : 0);
+
+                if (data == null) {
+                    return wanted == 0 ? 0 : -1;
+                }
+
+                long read = 0;
+
+                for (int i = offset; i < offset + length && data != null; ) {
+                    ByteBuffer dst = dsts[i];
+                    int count = Math.min(dst.remaining(), data.remaining());
+
+                    if (count == 0) {
+                        ++i;
+                        continue;
+                    }
+
+                    int limit = data.limit();
+                    data.limit(data.position() + count);
+                    dst.put(data);
+                    data.limit(limit);
+                    read += count;
+                    data = nextData(count, 0);
+                }
+
+                countRead();
+                return read;
+            }
+            finally {
+                readLock.unlock();
+            }
+        }
 
         @Override public int available() throws IOException {
-            return currentInputStream(false).available();
+            checkOpen();
+            lock.lock();
+
+            try {
+                return (int) Math.min(buffer.available(), Integer.MAX_VALUE);
+            }
+            finally {
+                lock.unlock();
+            }
         }
 
-        private InputStream currentInputStream(boolean blockIfEmpty) throws IOException {
+        private void checkOpen() throws IOException {
             if (sink == null) {
                 throw new IOException("Pipe not connected");
             }
             else if (closed) {
                 throw new IOException("Pipe closed");
             }
+        }
 
-            synchronized (currentInputStreamMutex) {
-                if (!endOfFile && currentInputStream.available() == 0 && (blockIfEmpty || !queuedChunks.isEmpty())) {
-                    try {
-                        ArrayList<byte[]> chunks = new ArrayList<byte[]>(queuedChunks.size());
+        private int read(byte b[], int off, int len, ByteMatcher stop, long nanos) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
 
-                        do {
-                            byte[] chunk = queuedChunks.take();
-                            endOfFile = endOfFile || chunk.length == 0;
-                            chunks.add(chunk);
-                        } while (!queuedChunks.isEmpty());
+            long deadline = System.nanoTime() + nanos;
 
-                        currentInputStream = new ByteArrayInputStream(ByteUtils.concat(chunks));
-                    }
-                    catch (InterruptedException ex) {
-                        throw new InterruptedIOException();
-                    }
+            try {
+                if (nanos < 0) {
+                    readLock.lock();
                 }
-
-                if (closed) {
-                    throw new IOException("Pipe closed"); // We were closed while blocked in take()
+                else if (!readLock.tryLock(nanos, TimeUnit.NANOSECONDS)) {
+                    return 0;
                 }
-                else {
-                    return currentInputStream;
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+
+            try {
+                ByteBuffer data = nextData(0, len == 0 ? 0 : nanos < 0 ? -1 : Math.max(0, deadline - System.nanoTime()));
+
+                if (data == null) {
+                    return len == 0 || !atEOF() ? 0 : -1;
                 }
+
+                int read = 0;
+                boolean stopped = false;
+
+                do { // Block for the first chunk only, then return whatever else is already buffered
+                    int count = Math.min(len - read, data.remaining());
+
+                    if (stop != null) {
+                        int found = stop.find(data, count);
+
+                        if (found >= 0) { // Leave the bytes after the match in the pipe
+                            count   = found + 1;
+                            stopped = true;
+                        }
+                    }
+
+                    data.get(b, off + read, count);
+                    read += count;
+                    data = nextData(count, 0);
+                } while (read < len && data != null && !stopped);
+
+                countRead();
+                return read;
+            }
+            finally {
+                readLock.unlock();
             }
         }
 
-        private void receive(byte[] chunk) throws IOException {
+        /**
+         * Commits what the reader consumed from the previous buffer returned by this method, and returns the next
+         * readable data. If nothing is buffered, waits at most <code>nanos</code> nanoseconds (forever if negative)
+         * for data to arrive. Returns null on EOF or timeout.
+         */
+        private ByteBuffer nextData(int consumed, long nanos) throws IOException {
+            checkOpen();
+            lock.lock();
+
             try {
-                queuedChunks.put(chunk);
+                if (consumed > 0) {
+                    boolean  drained = buffer.consume(consumed);
+                    Counters c       = counters;
+
+                    if (c != null) {
+                        c.bytesRead.addAndGet(consumed);
+
+                        if (drained) {
+                            c.chunksRead.incrementAndGet();
+                        }
+                    }
+
+                    notFull.signalAll();
+                }
+
+                awaitData(nanos);
+                return buffer.available() == 0 ? null : buffer.peek();
             }
-            catch (InterruptedException ex) { // put() should never block so this should never really happen
+            catch (InterruptedException ex) {
                 throw new InterruptedIOException();
             }
+            finally {
+                lock.unlock();
+            }
         }
-    }
 
-    public static class Sink extends OutputStream {
-        private Source source;
-        private volatile boolean closed;
+        /**
+         * Waits, with the lock held, at most <code>nanos</code> nanoseconds (forever if negative) until data is
+         * available or EOF has been reached.
+         */
+        private void awaitData(long nanos) throws IOException, InterruptedException {
+            while (nanos != 0 && buffer.available() == 0 && !endOfFile && !closed) {
+                nanos = await(notEmpty, nanos, true);
+            }
 
-        public Sink() {
+            if (closed) {
+                throw new IOException("Pipe closed"); // We were closed while blocked in await()
+            }
         }
 
-        public Sink(Source s) throws IOException {
-            connect(s);
+        /**
+         * Waits on a condition at most <code>nanos</code> nanoseconds (forever if negative), and returns the time
+         * left (or <code>nanos</code> if negative). Records the time spent blocked if metrics are enabled.
+         */
+        private long await(Condition condition, long nanos, boolean reader) throws InterruptedException {
+            Counters c = counters;
+            long start = c != null ? System.nanoTime() : 0;
+
+            if (nanos < 0) {
+                condition.await();
+            }
+            else {
+                nanos = Math.max(0, condition.awaitNanos(nanos));
+            }
+
+            if (c != null) {
+                (reader ? c.readerBlockedNanos : c.writerBlockedNanos).addAndGet(System.nanoTime() - start);
+            }
+
+            return nanos;
         }
 
-        public void connect(Source s) throws IOException {
-            s.connect(this);
+        private void countRead() {
+            Counters c = counters;
+
+            if (c != null) {
+                c.reads.incrementAndGet();
+            }
         }
 
-        @Override public void write(int b) throws IOException {
-            send(new byte[] { (byte) b });
+        /** Only meaningful to the reader holding readLock, after nextData() returned null. */
+        private boolean atEOF() {
+            lock.lock();
+
+            try {
+                return endOfFile && buffer.available() == 0;
+            }
+            finally {
+                lock.unlock();
+            }
         }
 
-        @Override public void write(byte b[], int off, int len) throws IOException {
-            send(Arrays.copyOfRange(b, off, off + len));
+        private boolean receive(ByteBuffer data, boolean owned) throws IOException {
+            return receive(data, owned, Long.MAX_VALUE, overflow, timeout);
         }
 
-        @Override public void write(byte b[]) throws IOException {
-            send(Arrays.copyOf(b, b.length));
+        /**
+         * Writes data to the buffer, applying the overflow policy when the buffer is full or when more than limit
+         * bytes would be queued. Returns false if the reader's end has been closed or disconnected.
+         */
+        private boolean receive(ByteBuffer data, boolean owned, long limit, Overflow overflow, long timeout)
+            throws IOException {
+            try {
+                return enqueue(data, owned, limit, overflow, timeout);
+            }
+            finally {
+                publish();
+            }
         }
 
-        @Override public synchronized void close() throws IOException {
-            if (!closed && source != null) {
-                source.receive(new byte[0] /* EOF */);
+        private boolean enqueue(ByteBuffer data, boolean owned, long limit, Overflow overflow, long timeout)
+            throws IOException {
+            int len     = data.remaining();
+            int written = 0;
+
+            if (!owned) {
+                data = buffer.prepare(data);
             }
 
-            closed = true;
+            long nanos    = TimeUnit.MILLISECONDS.toNanos(timeout);
+            long deadline = System.nanoTime() + nanos;
+
+            try {
+                if (overflow != Overflow.TIMEOUT) {
+                    writeLock.lock();
+                }
+                else if (!writeLock.tryLock(nanos, TimeUnit.NANOSECONDS)) { // Another writer is waiting for room
+                    throw new InterruptedIOException("Pipe full");
+                }
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+
+            try {
+                lock.lock();
+
+                try {
+                    Counters c = counters;
+
+                    nanos = Math.max(0, deadline - System.nanoTime());
+
+                    while (written < len) {
+                        if (closed || endOfFile) {
+                            return false;
+                        }
+
+                        int  remaining = len - written;
+                        long room      = Math.min(buffer.free(), limit - buffer.available());
+
+                        if (room < remaining) {
+                            if (overflow == Overflow.FAIL) {
+                                throw new IOException("Pipe full");
+                            }
+                            else if (overflow == Overflow.DISCONNECT) {
+                                closed = true;
+                                buffer.close();
+                                notEmpty.signalAll();
+                                return false;
+                            }
+                            else if (overflow == Overflow.DROP_OLDEST) {
+                                buffer.drop(remaining - room, !readLock.isLocked());
+                                room = Math.min(buffer.free(), Math.max(limit - buffer.available(), remaining));
+                            }
+                        }
+
+                        int count = room > 0 ? buffer.put(data, (int) Math.min(room, remaining)) : 0;
+
+                        if (count > 0) {
+                            written += count;
+                            notEmpty.signalAll();
+
+                            if (c != null) {
+                                c.bytesWritten.addAndGet(count);
+                                c.updatePeak(buffer.available());
+                            }
+                        }
+                        else if (overflow != Overflow.TIMEOUT) {
+                            await(notFull, -1, false);
+                        }
+                        else if (nanos > 0) {
+                            nanos = await(notFull, nanos, false);
+                        }
+                        else {
+                            InterruptedIOException ex = new InterruptedIOException("Pipe full");
+                            ex.bytesTransferred = written;
+                            throw ex;
+                        }
+                    }
+
+                    if (c != null) {
+                        c.chunksWritten.incrementAndGet();
+                    }
+                }
+                catch (InterruptedException ex) {
+                    InterruptedIOException iioe = new InterruptedIOException();
+                    iioe.bytesTransferred = written;
+                    throw iioe;
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+            finally {
+                writeLock.unlock();
+            }
+
+            return true;
         }
 
-        private void send(byte[] b) throws IOException {
-            if (source == null) {
-                throw new IOException("Pipe not connected");
+        /** Enables or disables metrics collection. Enabling metrics resets all counters. */
+        public void setMetricsEnabled(boolean enabled) {
+            counters = enabled ? new Counters() : null;
+        }
+
+        /** Returns a snapshot of the pipe's metrics, or null if metrics are disabled. */
+        public Metrics getMetrics() {
+            Counters c = counters;
+
+            if (c == null) {
+                return null;
             }
-            else if (closed) {
-                throw new IOException("Pipe closed");
+
+            lock.lock();
+
+            try {
+                return new Metrics(buffer.available(), c);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        private void receiveEOF() {
+            lock.lock();
+
+            try {
+                endOfFile = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+
+            publish();
+        }
+
+        /**
+         * Pushes chunks to a subscriber as it requests them, instead of having a thread block in {@link #read()}.
+         * Chunks are delivered by tasks submitted to <code>executor</code>, so many pipes can share a few threads.
+         * When the sink is closed, {@link Subscriber#onComplete()} is called; if this end is closed or disconnected,
+         * {@link Subscriber#onError} is. Cancelling the subscription closes this end of the pipe, and so does a
+         * {@link Subscriber#onNext} that throws, after which the exception is passed to {@link Subscriber#onError}.
+         * <p>
+         * The subscriber takes over the reader's role: do not read from the pipe while it is subscribed.
+         *
+         * @param subscriber The subscriber to receive chunks.
+         * @param executor   The executor to deliver chunks from.
+         * @throws IllegalStateException If the pipe already has a subscriber.
+         */
+        public synchronized void subscribe(Subscriber subscriber, Executor executor) {
+            if (publication != null) {
+                throw new IllegalStateException("Pipe already subscribed");
+            }
+
+            Publication p = new Publication(subscriber, executor);
+
+            publication = p;
+            subscriber.onSubscribe(p);
+            p.signal();
+        }
+
+        private void publish() {
+            Publication p = publication;
+
+            if (p != null) {
+                p.signal();
+            }
+        }
+
+        /** Removes and returns the (rest of the) oldest chunk. Called with both locks held. */
+        private ByteBuffer take() {
+            ByteBuffer chunk;
+
+            if (buffer instanceof ChunkBuffer) {
+                chunk = ((ChunkBuffer) buffer).poll();
+            }
+            else {
+                ByteBuffer data = buffer.peek();
+                byte[]     copy = new byte[data.remaining()];
+
+                data.get(copy);
+                buffer.consume(copy.length);
+                chunk = ByteBuffer.wrap(copy);
+            }
+
+            Counters c = counters;
+
+            if (c != null) {
+                c.bytesRead.addAndGet(chunk.remaining());
+                c.chunksRead.incrementAndGet();
+                c.reads.incrementAndGet();
             }
 
-            if (b.length > 0) {
-                source.receive(b);
+            notFull.signalAll();
+            return chunk;
+        }
+
+        private class Publication implements Subscription, Runnable {
+            private final Subscriber subscriber;
+            private final Executor executor;
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger signals = new AtomicInteger();
+            private volatile Throwable error;
+            private volatile boolean done;
+
+            Publication(Subscriber subscriber, Executor executor) {
+                this.subscriber = subscriber;
+                this.executor   = executor;
+            }
+
+            @Override public void request(long n) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException("Non-positive request: " + n);
+                }
+                else {
+                    long current, next;
+
+                    do {
+                        current = demand.get();
+                        next    = current + n < 0 ? Long.MAX_VALUE : current + n;
+                    } while (!demand.compareAndSet(current, next));
+                }
+
+                signal();
+            }
+
+            @Override public void cancel() {
+                done = true;
+
+                try {
+                    close();
+                }
+                catch (IOException ignored) {
+                }
+            }
+
+            void signal() {
+                if (signals.getAndIncrement() == 0) {
+                    executor.execute(this);
+                }
+            }
+
+            @Override public void run() {
+                int missed = 1;
+
+                try {
+                    do {
+                        deliver();
+                        missed = signals.addAndGet(-missed);
+                    } while (missed != 0);
+                }
+                finally {
+                    if (missed != 0) { // The subscriber threw from onError() or onComplete(), or onNext() threw an Error
+                        signals.set(0);
+                    }
+                }
+            }
+
+            private void deliver() {
+                while (!done) {
+                    Throwable  failure = error;
+                    ByteBuffer chunk   = null;
+                    boolean    eof     = false;
+
+                    if (failure == null) {
+                        readLock.lock();
+                        lock.lock();
+
+                        try {
+                            if (closed) {
+                                failure = new IOException("Pipe closed");
+                            }
+                            else if (buffer.available() > 0) {
+                                if (demand.get() == 0) {
+                                    return;
+                                }
+
+                                chunk = take();
+                            }
+                            else if (endOfFile) {
+                                eof = true;
+                            }
+                            else {
+                                return;
+                            }
+                        }
+                        finally {
+                            lock.unlock();
+                            readLock.unlock();
+                        }
+                    }
+
+                    if (chunk != null) {
+                        demand.decrementAndGet();
+
+                        try {
+                            subscriber.onNext(chunk);
+                        }
+                        catch (RuntimeException ex) { // Rule 2.13: treat the subscription as cancelled
+                            cancel();
+                            subscriber.onError(ex);
+                            return;
+                        }
+                    }
+                    else {
+                        done = true;
+
+                        if (eof) {
+                            subscriber.onComplete();
+                        }
+                        else {
+                            subscriber.onError(failure);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the chunks of a {@link Source}; see {@link Source#subscribe}. Mirrors
+     * <code>java.util.concurrent.Flow.Subscriber&lt;ByteBuffer&gt;</code>, so adapting is a one-liner per method.
+     */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+        void onNext(ByteBuffer chunk);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    /** Mirrors <code>java.util.concurrent.Flow.Subscription</code>. */
+    public interface Subscription {
+        void request(long n);
+        void cancel();
+    }
+
+    /** A snapshot of the counters of a {@link Source}. See {@link Source#setMetricsEnabled}. */
+    public static class Metrics {
+        private final long queuedBytes;
+        private final long peakQueuedBytes;
+        private final long bytesWritten;
+        private final long chunksWritten;
+        private final long bytesRead;
+        private final long chunksRead;
+        private final long reads;
+        private final long readerBlockedNanos;
+        private final long writerBlockedNanos;
+
+        private Metrics(long queuedBytes, Counters c) {
+            this.queuedBytes        = queuedBytes;
+            this.peakQueuedBytes    = c.peakQueuedBytes.get();
+            this.bytesWritten       = c.bytesWritten.get();
+            this.chunksWritten      = c.chunksWritten.get();
+            this.bytesRead          = c.bytesRead.get();
+            this.chunksRead         = c.chunksRead.get();
+            this.reads              = c.reads.get();
+            this.readerBlockedNanos = c.readerBlockedNanos.get();
+            this.writerBlockedNanos = c.writerBlockedNanos.get();
+        }
+
+        /** Bytes written but not yet read. */
+        public long getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        /** The highest value of {@link #getQueuedBytes()} seen. */
+        public long getPeakQueuedBytes() {
+            return peakQueuedBytes;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /** The number of successful writes. */
+        public long getChunksWritten() {
+            return chunksWritten;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /** The number of chunks (or contiguous ring buffer segments) that reads have drained. */
+        public long getChunksRead() {
+            return chunksRead;
+        }
+
+        /** The number of read calls that returned data. <code>chunksRead / reads</code> is the chunks per read. */
+        public long getReads() {
+            return reads;
+        }
+
+        /** Total time readers spent waiting for data. */
+        public long getReaderBlockedNanos() {
+            return readerBlockedNanos;
+        }
+
+        /** Total time writers spent waiting for a full pipe to drain. */
+        public long getWriterBlockedNanos() {
+            return writerBlockedNanos;
+        }
+
+        @Override public String toString() {
+            return String.format("[Pipe.Metrics queued: %d (peak %d), written: %d bytes in %d chunks, " +
+                                 "read: %d bytes from %d chunks in %d reads, blocked: reader %d ms, writer %d ms]",
+                                 queuedBytes, peakQueuedBytes, bytesWritten, chunksWritten,
+                                 bytesRead, chunksRead, reads,
+                                 readerBlockedNanos / 1000000, writerBlockedNanos / 1000000);
+        }
+    }
+
+    private static class Counters {
+        final AtomicLong peakQueuedBytes    = new AtomicLong();
+        final AtomicLong bytesWritten       = new AtomicLong();
+        final AtomicLong chunksWritten      = new AtomicLong();
+        final AtomicLong bytesRead          = new AtomicLong();
+        final AtomicLong chunksRead         = new AtomicLong();
+        final AtomicLong reads              = new AtomicLong();
+        final AtomicLong readerBlockedNanos = new AtomicLong();
+        final AtomicLong writerBlockedNanos = new AtomicLong();
+
+        void updatePeak(long queuedBytes) { // Called with the source lock held
+            if (queuedBytes > peakQueuedBytes.get()) {
+                peakQueuedBytes.set(queuedBytes);
+            }
+        }
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer data) {
+        byte[] copy = new byte[data.remaining()];
+
+        data.duplicate().get(copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    private static void write(OutputStream out, ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        }
+        else {
+            byte[] buffer = BufferPool.shared().acquire(Math.min(data.remaining(), 8192));
+
+            try {
+                while (data.hasRemaining()) {
+                    int count = Math.min(data.remaining(), buffer.length);
+
+                    data.get(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                }
+            }
+            finally {
+                BufferPool.shared().release(buffer);
+            }
+        }
+    }
+
+    public static class Sink extends OutputStream {
+        private Source source;
+        private volatile boolean closed;
+
+        public Sink() {
+        }
+
+        public Sink(Source s) throws IOException {
+            connect(s);
+        }
+
+        public void connect(Source s) throws IOException {
+            s.connect(this);
+        }
+
+        @Override public void write(int b) throws IOException {
+            send(ByteBuffer.wrap(new byte[] { (byte) b }), true);
+        }
+
+        @Override public void write(byte b[], int off, int len) throws IOException {
+            send(ByteBuffer.wrap(b, off, len), false);
+        }
+
+        @Override public void write(byte b[]) throws IOException {
+            send(ByteBuffer.wrap(b), false);
+        }
+
+        /**
+         * Writes an array without copying it. The pipe takes ownership of the array, which must not be modified
+         * afterwards. Unbounded pipes serve reads directly from it; bounded pipes copy it into their ring buffer.
+         */
+        public void writeOwned(byte b[]) throws IOException {
+            send(ByteBuffer.wrap(b), true);
+        }
+
+        /** Like {@link #writeOwned(byte[])}, but only hands over part of the array. */
+        public void writeOwned(byte b[], int off, int len) throws IOException {
+            send(ByteBuffer.wrap(b, off, len), true);
+        }
+
+        /**
+         * Writes the remaining bytes of a (heap or direct) buffer without copying them. The pipe takes ownership of
+         * the buffer content, which must not be modified afterwards. The buffer's position is not changed.
+         */
+        public void writeOwned(ByteBuffer data) throws IOException {
+            send(data.slice(), true);
+        }
+
+        /**
+         * Returns a channel view of this pipe end, which writes directly from the caller's buffers. Unlike
+         * {@link #writeOwned(ByteBuffer)}, the buffers are copied (if required) and consumed.
+         */
+        public GatheringByteChannel channel() {
+            return new GatheringByteChannel() {
+                @Override public int write(ByteBuffer src) throws IOException {
+                    int count = src.remaining();
+
+                    send(src, false);
+                    src.position(src.limit());
+                    return count;
+                }
+
+                @Override public long write(ByteBuffer[] srcs) throws IOException {
+                    return write(srcs, 0, srcs.length);
+                }
+
+                @Override public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+                    if (offset < 0 || length < 0 || length > srcs.length - offset) {
+                        throw new IndexOutOfBoundsException();
+                    }
+
+                    long written = 0;
+
+                    for (int i = offset; i < offset + length; ++i) {
+                        written += write(srcs[i]);
+                    }
+
+                    return written;
+                }
+
+                @Override public boolean isOpen() {
+                    return !closed;
+                }
+
+                @Override public void close() throws IOException {
+                    Sink.this.close();
+                }
+            };
+        }
+
+        @Override public synchronized void close() throws IOException {
+            if (!closed) {
+                deliverEOF();
+            }
+
+            closed = true;
+        }
+
+        void attach(Source s) throws IOException {
+            if (source != null) {
+                throw new IOException("Pipe already connected");
+            }
+
+            source = s;
+        }
+
+        void detach(Source s) throws IOException {
+            close();
+        }
+
+        void checkConnected() throws IOException {
+            if (source == null) {
+                throw new IOException("Pipe not connected");
+            }
+        }
+
+        void deliver(ByteBuffer data, boolean owned) throws IOException {
+            if (!source.receive(data, owned)) {
+                throw new IOException("Pipe closed");
+            }
+        }
+
+        void deliverEOF() {
+            if (source != null) {
+                source.receiveEOF();
+            }
+        }
+
+        void deliverError() throws IOException {
+            if (source != null) {
+                source.close();
+            }
+        }
+
+        /**
+         * Returns a subscriber that writes the chunks it receives to this pipe, and closes it on completion. On
+         * errors, the reader's end is closed, so the reader gets an {@link IOException} rather than EOF.
+         * <p>
+         * The subscriber keeps at most <code>prefetch</code> chunks requested; each chunk is written as by
+         * {@link #write(byte[])}, so a bounded pipe's overflow policy applies to the publisher's thread.
+         *
+         * @param prefetch The number of chunks to request ahead.
+         */
+        public Subscriber subscriber(final int prefetch) {
+            return new Subscriber() {
+                private Subscription subscription;
+
+                @Override public void onSubscribe(Subscription s) {
+                    subscription = s;
+                    subscription.request(prefetch);
+                }
+
+                @Override public void onNext(ByteBuffer chunk) {
+                    try {
+                        send(chunk, false);
+                        subscription.request(1);
+                    }
+                    catch (IOException ex) {
+                        subscription.cancel();
+                    }
+                }
+
+                @Override public void onError(Throwable throwable) {
+                    try {
+                        deliverError();
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+
+                @Override public void onComplete() {
+                    try {
+                        close();
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+            };
+        }
+
+        /**
+         * Returns the metrics of the connected source, or null if not connected or if metrics are disabled. A
+         * {@link Broadcast} always returns null; ask each of its sources instead.
+         */
+        public Metrics getMetrics() {
+            return source != null ? source.getMetrics() : null;
+        }
+
+        private void send(ByteBuffer data, boolean owned) throws IOException {
+            checkConnected();
+
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+
+            if (data.hasRemaining()) {
+                deliver(data, owned);
+            }
+        }
+    }
+
+    /**
+     * A sink that feeds any number of sources. Each chunk written is stored once, and shared by all sources, which
+     * read it independently. When a bounded broadcast has more than <code>capacity</code> bytes queued for a reader,
+     * the overflow policy decides what happens. Closing a source just disconnects it from the broadcast.
+     */
+    public static class Broadcast extends Sink {
+        private final CopyOnWriteArrayList<Source> sources = new CopyOnWriteArrayList<Source>();
+        private final ReentrantLock writeLock = new ReentrantLock(); // All sources get the chunks in the same order
+        private final long capacity;
+        private final Overflow overflow;
+
+        public Broadcast() {
+            this.capacity = Long.MAX_VALUE;
+            this.overflow = Overflow.BLOCK;
+        }
+
+        /**
+         * Creates a bounded broadcast pipe. Only {@link Overflow#BLOCK}, {@link Overflow#DROP_OLDEST} and
+         * {@link Overflow#DISCONNECT} are supported, since a chunk that one reader has already queued cannot be taken
+         * back when another reader is full.
+         *
+         * @param capacity The maximum number of bytes to queue for each reader.
+         * @param overflow What to do when a reader has <code>capacity</code> bytes queued.
+         */
+        public Broadcast(int capacity, Overflow overflow) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Capacity must be positive");
+            }
+            else if (overflow == Overflow.FAIL || overflow == Overflow.TIMEOUT) {
+                throw new IllegalArgumentException("Broadcast does not support " + overflow);
+            }
+
+            this.capacity = capacity;
+            this.overflow = overflow;
+        }
+
+        @Override void attach(Source s) {
+            sources.add(s);
+        }
+
+        @Override void detach(Source s) {
+            sources.remove(s);
+        }
+
+        @Override void checkConnected() {
+            // Data written without readers is discarded
+        }
+
+        @Override void deliver(ByteBuffer data, boolean owned) throws IOException {
+            ByteBuffer chunk = owned ? data : copyOf(data);
+
+            writeLock.lock();
+
+            try {
+                for (Source s : sources) {
+                    if (!s.receive(chunk.duplicate(), true, capacity, overflow, 0)) {
+                        sources.remove(s);
+                    }
+                }
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override void deliverEOF() {
+            for (Source s : sources) {
+                s.receiveEOF();
+            }
+        }
+
+        @Override void deliverError() throws IOException {
+            for (Source s : sources) {
+                s.close(); // Detaches it
+            }
+
+            close();
+        }
+    }
+
+    /**
+     * Storage for bytes written to a {@link Source} but not yet read. All methods except {@link #prepare} are called
+     * with the source lock held. {@link #prepare} turns a caller's buffer into something that may be passed to
+     * {@link #put}, copying it if the buffer intends to keep it. {@link #put} consumes at most <code>max</code>
+     * bytes from its argument. The buffer returned by {@link #peek} is only touched by the reader, which advances its
+     * position and then calls {@link #consume}, which returns true if that buffer is now drained. {@link #drop} may
+     * only discard that data if <code>includeHead</code> is true.
+     */
+    private static abstract class Buffer {
+        abstract long available();
+        abstract long free();
+        abstract ByteBuffer prepare(ByteBuffer data);
+        abstract int put(ByteBuffer data, int max) throws IOException;
+        abstract ByteBuffer peek();
+        abstract boolean consume(int count);
+        abstract long drop(long count, boolean includeHead);
+
+        void close() {
+        }
+    }
+
+    /** An unbounded queue of chunks, one per write. */
+    private static class ChunkBuffer extends Buffer {
+        private final ArrayDeque<ByteBuffer> queuedChunks = new ArrayDeque<ByteBuffer>();
+        private long queuedBytes;
+
+        @Override long available() {
+            return queuedBytes;
+        }
+
+        @Override long free() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override ByteBuffer prepare(ByteBuffer data) {
+            return copyOf(data); // Defensive copy, outside the lock
+        }
+
+        @Override int put(ByteBuffer data, int max) {
+            ByteBuffer chunk = data.slice();
+
+            if (chunk.remaining() > max) {
+                chunk.limit(max);
+            }
+
+            queuedChunks.add(chunk);
+            queuedBytes += chunk.remaining();
+            data.position(data.position() + chunk.remaining());
+            return chunk.remaining();
+        }
+
+        @Override ByteBuffer peek() {
+            return queuedChunks.peek();
+        }
+
+        @Override boolean consume(int count) {
+            queuedBytes -= count;
+
+            if (!queuedChunks.peek().hasRemaining()) {
+                queuedChunks.poll();
+                return true;
+            }
+
+            return false;
+        }
+
+        /** Removes and returns the (rest of the) oldest chunk, or null if empty. */
+        ByteBuffer poll() {
+            ByteBuffer chunk = queuedChunks.poll();
+
+            if (chunk != null) {
+                queuedBytes -= chunk.remaining();
+            }
+
+            return chunk;
+        }
+
+        @Override long drop(long count, boolean includeHead) {
+            Iterator<ByteBuffer> i = queuedChunks.iterator();
+            long dropped = 0;
+
+            if (!includeHead && i.hasNext()) {
+                i.next();
+            }
+
+            while (dropped < count && i.hasNext()) {
+                dropped += i.next().remaining();
+                i.remove();
+            }
+
+            queuedBytes -= dropped;
+            return dropped;
+        }
+    }
+
+    /** A fixed-size, preallocated ring buffer. */
+    private static class RingBuffer extends Buffer {
+        private final byte[] ring;
+        private final ByteBuffer readView;
+        private int head, size;
+
+        RingBuffer(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Capacity must be positive");
+            }
+
+            ring     = new byte[capacity];
+            readView = ByteBuffer.wrap(ring);
+        }
+
+        @Override long available() {
+            return size;
+        }
+
+        @Override long free() {
+            return ring.length - size;
+        }
+
+        @Override ByteBuffer prepare(ByteBuffer data) {
+            return data; // Copied straight into the ring by put()
+        }
+
+        @Override int put(ByteBuffer data, int max) {
+            int written = 0;
+
+            while (written < max && size < ring.length) {
+                int tail  = (head + size) % ring.length;
+                int count = Math.min(max - written, tail < head ? head - tail : ring.length - tail);
+
+                data.get(ring, tail, count);
+                size    += count;
+                written += count;
+            }
+
+            return written;
+        }
+
+        @Override ByteBuffer peek() {
+            readView.limit(Math.min(head + size, ring.length));
+            readView.position(head);
+            return readView;
+        }
+
+        @Override boolean consume(int count) {
+            boolean drained = !readView.hasRemaining();
+
+            size -= count;
+            head  = size == 0 ? 0 : (head + count) % ring.length;
+            return drained;
+        }
+
+        @Override long drop(long count, boolean includeHead) {
+            int dropped = includeHead ? (int) Math.min(count, size) : 0;
+
+            consume(dropped);
+            return dropped;
+        }
+    }
+
+    /**
+     * A chunk queue that spills to memory-mapped temporary files once more than <code>memoryLimit</code> bytes are
+     * queued. Once spilling, all writes go to disk until the spilled data has been read, so order is preserved.
+     * Spilled data is never dropped.
+     * <p>
+     * A segment that has been read is kept as a spare for the next spill, so a pipe that hovers around the limit
+     * does not create a file each time. Other segments are deleted when read. Java cannot unmap a file, so a
+     * deleted segment keeps its disk blocks until its mapping has been garbage collected; nothing refers to it once
+     * it has been deleted.
+     */
+    private static class SpillBuffer extends Buffer {
+        private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+        private final ChunkBuffer memory = new ChunkBuffer();
+        private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+        private final int memoryLimit;
+        private final File directory;
+        private Segment spare;
+        private long spilledBytes;
+
+        SpillBuffer(int memoryLimit, File directory) {
+            if (memoryLimit < 0) {
+                throw new IllegalArgumentException("Memory limit must not be negative");
+            }
+
+            this.memoryLimit = memoryLimit;
+            this.directory   = directory;
+        }
+
+        @Override long available() {
+            return memory.available() + spilledBytes;
+        }
+
+        @Override long free() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override ByteBuffer prepare(ByteBuffer data) {
+            return memory.prepare(data);
+        }
+
+        @Override int put(ByteBuffer data, int max) throws IOException {
+            if (segments.isEmpty() && memory.available() + Math.min(max, data.remaining()) <= memoryLimit) {
+                return memory.put(data, max);
+            }
+
+            int written = 0;
+
+            while (written < max && data.hasRemaining()) {
+                Segment tail = segments.peekLast();
+
+                if (tail == null || !tail.writeView.hasRemaining()) {
+                    segments.add(tail = spare != null ? spare : new Segment(directory));
+                    spare = null;
+                }
+
+                int count = Math.min(Math.min(max - written, data.remaining()), tail.writeView.remaining());
+                int limit = data.limit();
+
+                data.limit(data.position() + count);
+                tail.writeView.put(data);
+                data.limit(limit);
+                written      += count;
+                spilledBytes += count;
+            }
+
+            return written;
+        }
+
+        @Override ByteBuffer peek() {
+            if (memory.available() != 0) {
+                return memory.peek();
+            }
+            else {
+                Segment head = segments.peek();
+
+                head.readView.limit(head.writeView.position());
+                return head.readView;
+            }
+        }
+
+        @Override boolean consume(int count) {
+            if (memory.available() != 0) {
+                return memory.consume(count);
+            }
+            else {
+                Segment head    = segments.peek();
+                boolean drained = !head.readView.hasRemaining();
+
+                spilledBytes -= count;
+
+                if (head.readView.position() == head.writeView.position()) {
+                    segments.poll(); // Fully read; if it was the last one, we're back to memory only
+
+                    if (spare == null) {
+                        head.rewind();
+                        spare = head;
+                    }
+                    else {
+                        head.delete();
+                    }
+                }
+
+                return drained;
+            }
+        }
+
+        @Override long drop(long count, boolean includeHead) {
+            return memory.drop(count, includeHead);
+        }
+
+        @Override void close() {
+            for (Segment segment : segments) {
+                segment.delete();
+            }
+
+            if (spare != null) {
+                spare.delete();
+                spare = null;
+            }
+
+            segments.clear();
+            spilledBytes = 0;
+        }
+
+        private static class Segment {
+            private final File file;
+            private final ByteBuffer writeView;
+            private final ByteBuffer readView;
+
+            Segment(File directory) throws IOException {
+                file = File.createTempFile("pipe", ".spill", directory);
+
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+                    try {
+                        writeView = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+                    }
+                    finally {
+                        raf.close(); // The mapping stays valid
+                    }
+                }
+                catch (IOException ex) {
+                    delete();
+                    throw ex;
+                }
+
+                readView = writeView.duplicate();
+                readView.limit(0);
+            }
+
+            void rewind() {
+                writeView.clear();
+                readView.clear();
+                readView.limit(0);
+            }
+
+            void delete() {
+                if (!file.delete()) {
+                    file.deleteOnExit(); // Probably still mapped (Windows); try again later
+                }
             }
         }
     }
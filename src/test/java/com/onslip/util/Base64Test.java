@@ -0,0 +1,321 @@
+package com.onslip.util;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.Executable;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Base64Test {
+    private static final Random random = new Random(4711);
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] reference(byte[] data, boolean lineSep) {
+        return (lineSep ? java.util.Base64.getMimeEncoder() : java.util.Base64.getEncoder()).encode(data);
+    }
+
+    @Test public void testArrays() {
+        for (int length = 0; length < 300; ++length) {
+            byte[] data = randomBytes(length);
+
+            for (boolean lineSep : new boolean[] { false, true }) {
+                byte[] expected = reference(data, lineSep);
+
+                assertArrayEquals(expected, Base64.encodeToByte(data, lineSep));
+                assertEquals(new String(expected), Base64.encodeToString(data, lineSep));
+                assertEquals(expected.length, Base64.encodedLength(length, lineSep));
+
+                byte[] encoded = new byte[expected.length + 4];
+                assertEquals(expected.length, Base64.encode(data, 0, length, encoded, 2, lineSep));
+                assertArrayEquals(expected, Arrays.copyOfRange(encoded, 2, 2 + expected.length));
+
+                char[] chars = new char[expected.length + 1];
+                assertEquals(expected.length, Base64.encode(data, 0, length, chars, 1, lineSep));
+                assertEquals(new String(expected), new String(chars, 1, expected.length));
+
+                byte[] decoded = new byte[length + 3];
+                assertEquals(length, Base64.decodedLength(encoded, 2, expected.length));
+                assertEquals(length, Base64.decodedLength(chars, 1, expected.length));
+                assertEquals(length, Base64.decode(encoded, 2, expected.length, decoded, 1));
+                assertArrayEquals(data, Arrays.copyOfRange(decoded, 1, 1 + length));
+                assertEquals(length, Base64.decode(chars, 1, expected.length, decoded, 3));
+                assertArrayEquals(data, Arrays.copyOfRange(decoded, 3, 3 + length));
+                assertEquals(length, Base64.decodeFast(encoded, 2, expected.length, decoded, 0));
+                assertArrayEquals(data, Arrays.copyOf(decoded, length));
+
+                assertArrayEquals(data, Base64.decode(expected));
+                assertArrayEquals(data, Base64.decode(new String(expected)));
+                assertArrayEquals(data, Base64.decodeFast(expected));
+                assertArrayEquals(data, Base64.decodeFast(new String(expected)));
+            }
+        }
+    }
+
+    @Test public void testBuffers() {
+        byte[] data     = randomBytes(1000);
+        byte[] expected = reference(data, true);
+
+        for (ByteBuffer src : new ByteBuffer[] { ByteBuffer.wrap(data), ByteBuffer.allocateDirect(data.length).put(data) }) {
+            for (ByteBuffer dst : new ByteBuffer[] { ByteBuffer.allocate(2000), ByteBuffer.allocateDirect(2000) }) {
+                if (src.isDirect()) {
+                    src.clear();
+                }
+                else {
+                    src.rewind();
+                }
+
+                dst.clear();
+                dst.put((byte) '-');
+                assertEquals(expected.length, Base64.encode(src, dst, true));
+                assertFalse(src.hasRemaining());
+                assertEquals(1 + expected.length, dst.position());
+
+                byte[] encoded = new byte[expected.length];
+                dst.flip();
+                dst.get();
+                dst.duplicate().get(encoded);
+                assertArrayEquals(expected, encoded);
+
+                ByteBuffer decoded = ByteBuffer.allocateDirect(data.length);
+                assertEquals(data.length, Base64.decode(dst, decoded));
+                assertFalse(dst.hasRemaining());
+                decoded.flip();
+                assertEquals(ByteBuffer.wrap(data), decoded);
+            }
+        }
+    }
+
+    @Test public void testCodec() {
+        byte[] data = randomBytes(1000);
+
+        for (boolean lineSep : new boolean[] { false, true }) {
+            byte[] expected = reference(data, lineSep);
+
+            for (int chunk : new int[] { 1, 2, 5, 77, 1000 }) {
+                Base64.Encoder encoder = new Base64.Encoder(lineSep);
+                ByteBuffer     in      = ByteBuffer.wrap(data);
+                ByteBuffer     out     = ByteBuffer.allocate(expected.length);
+                ByteBuffer     small   = ByteBuffer.allocateDirect(chunk);
+
+                CoderResult    result  = CoderResult.UNDERFLOW;
+
+                while (in.hasRemaining() || result.isOverflow()) {
+                    ByteBuffer slice = in.duplicate();
+                    slice.limit(Math.min(in.limit(), in.position() + chunk));
+                    result = encoder.encode(slice, small, slice.limit() == data.length);
+                    in.position(slice.position());
+                    small.flip();
+                    out.put(small);
+                    small.clear();
+                }
+
+                assertArrayEquals(expected, out.array(), "Chunk " + chunk);
+
+                Base64.Decoder decoder = new Base64.Decoder();
+                ByteBuffer     decoded = ByteBuffer.allocate(data.length);
+                out.flip();
+
+                while (out.hasRemaining()) {
+                    ByteBuffer slice = out.duplicate();
+                    slice.limit(Math.min(out.limit(), out.position() + chunk));
+                    assertTrue(decoder.decode(slice, decoded, slice.limit() == out.limit()).isUnderflow());
+                    out.position(slice.position());
+                }
+
+                assertArrayEquals(data, decoded.array());
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(1);
+        assertTrue(new Base64.Decoder().decode(ByteBuffer.wrap("YWJj".getBytes()), out, true).isOverflow());
+        assertTrue(new Base64.Decoder().decode(ByteBuffer.wrap("YWI".getBytes()), out, true).isMalformed());
+        assertTrue(new Base64.Decoder().decode(ByteBuffer.wrap("Y===".getBytes()), out, true).isMalformed());
+    }
+
+    @Test public void testStreams() throws java.io.IOException {
+        byte[] data = randomBytes(100000);
+
+        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
+        java.io.OutputStream          os   = Base64.Encoder.wrap(baos, true);
+
+        os.write(data, 0, 1);
+        os.write(data[1]);
+        os.write(data, 2, data.length - 2);
+        os.close();
+        assertArrayEquals(reference(data, true), baos.toByteArray());
+
+        java.io.InputStream is = Base64.Decoder.wrap(new java.io.ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(data[0] & 0xff, is.read());
+        assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), IOUtils.readFully(is));
+        assertEquals(-1, is.read());
+
+        final java.io.InputStream bad = Base64.Decoder.wrap(new java.io.ByteArrayInputStream("YWJjZ".getBytes()));
+        assertThrows(java.io.IOException.class, new Executable() {
+            public void execute() throws Exception { IOUtils.readFully(bad); }
+        });
+    }
+
+    @Test public void testVariants() throws java.io.IOException {
+        java.util.Base64.Encoder[] references = {
+            java.util.Base64.getEncoder(),    java.util.Base64.getEncoder().withoutPadding(),
+            java.util.Base64.getUrlEncoder(), java.util.Base64.getUrlEncoder().withoutPadding(),
+        };
+
+        for (Base64.Variant variant : Base64.Variant.values()) {
+            java.util.Base64.Encoder reference = references[variant.ordinal()];
+
+            for (int length = 0; length < 200; ++length) {
+                byte[] data = randomBytes(length);
+
+                for (boolean lineSep : new boolean[] { false, true }) {
+                    String expected = reference.encodeToString(data);
+                    String message  = variant + ", " + length + " bytes";
+
+                    if (lineSep) {
+                        expected = expected.replaceAll("(.{76})(?=.)", "$1\r\n");
+                    }
+
+                    assertEquals(expected, Base64.encodeToString(variant, data, lineSep), message);
+                    assertEquals(expected, new String(Base64.encodeToByte(variant, data, lineSep)), message);
+                    assertEquals(expected.length(), Base64.encodedLength(variant, length, lineSep), message);
+
+                    assertArrayEquals(data, Base64.decode(variant, expected), message);
+                    assertArrayEquals(data, Base64.decode(variant, expected.getBytes()), message);
+                    assertArrayEquals(data, Base64.decode(variant, expected.toCharArray()), message);
+                    assertArrayEquals(data, Base64.decodeFast(variant, expected), message);
+                    assertArrayEquals(data, Base64.decodeFast(variant, expected.getBytes()), message);
+                    assertArrayEquals(data, Base64.decodeFast(variant, expected.toCharArray()), message);
+
+                    java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
+                    java.io.OutputStream          os   = Base64.Encoder.wrap(baos, variant, lineSep);
+                    os.write(data);
+                    os.close();
+                    assertEquals(expected, baos.toString("ISO-8859-1"), message);
+
+                    java.io.InputStream is = Base64.Decoder.wrap(new java.io.ByteArrayInputStream(baos.toByteArray()), variant);
+                    assertArrayEquals(data, IOUtils.readFully(is), message);
+                }
+            }
+        }
+
+        assertArrayEquals(new byte[] { -5, -1 }, Base64.decode(Base64.Variant.URL_SAFE_UNPADDED, "-_8="), "Padding accepted");
+        assertNull(Base64.decode(Base64.Variant.URL_SAFE, "-_8"), "Padding required");
+        assertNull(Base64.decode(Base64.Variant.URL_SAFE_UNPADDED, "-_8=A"));
+        assertNull(Base64.decode(Base64.Variant.URL_SAFE, "+/8="), "Not in the URL safe alphabet");
+    }
+
+    @Test public void testWords() {
+        java.util.Base64.Encoder[] references = {
+            java.util.Base64.getEncoder(),    java.util.Base64.getEncoder().withoutPadding(),
+            java.util.Base64.getUrlEncoder(), java.util.Base64.getUrlEncoder().withoutPadding(),
+        };
+
+        for (int round = 0; round < 2000; ++round) {
+            Base64.Variant variant = Base64.Variant.values()[random.nextInt(4)];
+            boolean        lineSep = random.nextBoolean();
+            int            length  = random.nextInt(round < 1000 ? 200 : 5000);
+            int            offset  = random.nextInt(10);
+            int            slack   = random.nextInt(10);
+            byte[]         data    = randomBytes(offset + length + slack);
+            String         message = variant + ", " + lineSep + ", " + offset + "+" + length + "+" + slack;
+
+            String expected = references[variant.ordinal()].encodeToString(Arrays.copyOfRange(data, offset, offset + length));
+
+            if (lineSep) {
+                expected = expected.replaceAll("(.{76})(?=.)", "$1\r\n");
+            }
+
+            // Bytes outside of the destination range must survive word-sized writes
+            byte[] encoded = new byte[offset + expected.length() + slack];
+            Arrays.fill(encoded, (byte) '!');
+            assertEquals(expected.length(), Base64.encode(variant, data, offset, length, encoded, offset, lineSep), message);
+            assertEquals("!!!!!!!!!!".substring(0, offset) + expected + "!!!!!!!!!!".substring(0, slack), new String(encoded), message);
+
+            byte[] decoded = new byte[offset + length + slack];
+            assertEquals(length, Base64.decodeFast(variant, encoded, offset, expected.length(), decoded, offset), message);
+            assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), Arrays.copyOfRange(decoded, offset, offset + length), message);
+            assertArrayEquals(new byte[slack], Arrays.copyOfRange(decoded, offset + length, decoded.length), message);
+
+            assertEquals(length, Base64.decode(variant, encoded, offset, expected.length(), decoded, 0), message);
+            assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), Arrays.copyOf(decoded, length), message);
+        }
+    }
+
+    @Test public void testParallel() throws InterruptedException {
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(3);
+
+        try {
+            for (int length : new int[] { 1000, (1 << 20) - 1, 1 << 20, (1 << 20) + 1, (3 << 20) + 2 }) {
+                byte[] data = randomBytes(length);
+
+                for (Base64.Variant variant : Base64.Variant.values()) {
+                    for (boolean lineSep : new boolean[] { false, true }) {
+                        String message  = variant + ", " + lineSep + ", " + length + " bytes";
+                        byte[] expected = Base64.encodeToByte(variant, data, lineSep);
+                        byte[] encoded  = Base64.encodeToByte(variant, data, lineSep, executor);
+
+                        assertArrayEquals(expected, encoded, message);
+                        assertArrayEquals(data, Base64.decodeFast(variant, encoded, executor), message);
+                    }
+                }
+            }
+
+            assertArrayEquals(new byte[0], Base64.encodeToByte(null, false, executor));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testParallelChunks() throws InterruptedException {
+        final java.util.concurrent.atomic.AtomicInteger tasks = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.ThreadPoolExecutor executor = new java.util.concurrent.ThreadPoolExecutor(
+            3, 3, 0, java.util.concurrent.TimeUnit.MILLISECONDS, new java.util.concurrent.LinkedBlockingQueue<Runnable>()) {
+            @Override public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                super.execute(command);
+            }
+        };
+
+        try {
+            byte[] data = randomBytes((3 << 20) + 2);
+
+            for (boolean lineSep : new boolean[] { false, true }) {
+                byte[] encoded = Base64.encodeToByte(data, lineSep);
+
+                tasks.set(0);
+                assertArrayEquals(data, Base64.decodeFast(encoded, executor));
+                assertEquals(13, tasks.get(), "About 256 KiB per chunk, lineSep " + lineSep);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testErrors() {
+        assertNull(Base64.decode("abc"));
+        assertEquals(-1, Base64.decodedLength(new byte[] { 'a', 'b', 'c' }, 0, 3));
+        assertEquals(-1, Base64.decode(ByteBuffer.wrap(new byte[] { 'a' }), ByteBuffer.allocate(10)));
+        assertArrayEquals(new byte[] { 'a' }, Base64.decode("Y\r\nQ=!=\n"), "Illegal characters are ignored");
+
+        final ByteBuffer src = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+        assertThrows(BufferOverflowException.class, new Executable() {
+            public void execute() throws Exception { Base64.encode(src, ByteBuffer.allocate(7), false); }
+        });
+        assertEquals(0, src.position());
+
+        assertThrows(IndexOutOfBoundsException.class, new Executable() {
+            public void execute() throws Exception { Base64.encode(new byte[4], 0, 4, new byte[8], 1, false); }
+        });
+    }
+}
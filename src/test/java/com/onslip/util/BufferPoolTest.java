@@ -0,0 +1,73 @@
+package com.onslip.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferPoolTest {
+    @Test public void testSizeClasses() {
+        BufferPool pool = new BufferPool(1000, 5000, 1 << 20);
+
+        assertEquals(1024, pool.acquire(0).length);
+        assertEquals(1024, pool.acquire(1024).length);
+        assertEquals(2048, pool.acquire(1025).length);
+        assertEquals(8192, pool.acquire(8192).length);
+        assertEquals(8193, pool.acquire(8193).length, "Too large to pool");
+    }
+
+    @Test public void testReuse() {
+        BufferPool pool = new BufferPool(1024, 8192, 4096);
+        byte[] a = pool.acquire(4096);
+        byte[] b = pool.acquire(4096);
+        byte[] c = pool.acquire(4096);
+
+        pool.release(a); // Thread cache
+        pool.release(b); // Shared
+        pool.release(c); // Over the limit
+        pool.release(new byte[1000]);
+        assertEquals(4096, pool.getRetainedBytes());
+
+        assertSame(a, pool.acquire(4000));
+        assertSame(b, pool.acquire(4000));
+        assertNotSame(c, pool.acquire(4000));
+        assertEquals(0, pool.getRetainedBytes());
+
+        BufferPool large = new BufferPool(1024, 65536, 65536);
+        byte[]     d     = large.acquire(65536);
+        large.release(d); // Too large for the thread cache
+        assertEquals(65536, large.getRetainedBytes());
+        assertSame(d, large.acquire(65536));
+        assertEquals(0, large.getRetainedBytes());
+    }
+
+    @Test public void testCopyStreamAllocation() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        Assumptions.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long   thread = Thread.currentThread().getId();
+        byte[] data   = new byte[100];
+
+        OutputStream discard = new OutputStream() {
+            @Override public void write(int b) {}
+            @Override public void write(byte[] b, int off, int len) {}
+        };
+
+        IOUtils.copyStream(new ByteArrayInputStream(data), discard); // Warm up
+
+        long before = threads.getThreadAllocatedBytes(thread);
+
+        for (int i = 0; i < 1000; ++i) {
+            IOUtils.copyStream(new ByteArrayInputStream(data), discard);
+        }
+
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(allocated < 1000 * 8192, "Allocated " + allocated + " bytes");
+    }
+}
@@ -0,0 +1,114 @@
+package com.onslip.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.Executable;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ByteMatcherTest {
+    @Test public void testAnyOf() {
+        byte[] data = new byte[100];
+
+        for (byte[] set : new byte[][] { { 7 }, { 7, (byte) 0x80 }, { 1, 7, 3 }, { 1, 2, 7, 4 }, { (byte) 0xff } }) {
+            ByteMatcher matcher = ByteMatcher.anyOf(set);
+
+            for (int pos = 0; pos < data.length; ++pos) {
+                java.util.Arrays.fill(data, (byte) 0x55);
+                data[pos] = set[set.length - 1];
+
+                assertEquals(pos, ByteUtils.indexOf(data, 0, data.length, matcher));
+                assertEquals(-1,  ByteUtils.indexOf(data, pos + 1, data.length - pos - 1, matcher));
+            }
+        }
+
+        data[10] = 0x04; // 0x04 - 0x01 borrows into the next byte; the lowest match must still win
+        data[11] = 0x05;
+        assertEquals(10, ByteUtils.indexOf(data, 0, data.length, ByteMatcher.anyOf((byte) 0x04, (byte) 0x05)));
+        assertFalse(ByteMatcher.anyOf().matches((byte) 0));
+    }
+
+    @Test public void testAnyOfAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        Assumptions.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long        thread  = Thread.currentThread().getId();
+        byte[]      data    = new byte[100];
+        ByteMatcher matcher = ByteMatcher.anyOf((byte) '\r', (byte) '\n');
+
+        assertEquals(-1, ByteUtils.indexOf(data, 0, data.length, matcher)); // Warm up
+
+        long before = threads.getThreadAllocatedBytes(thread);
+
+        for (int i = 0; i < 1000; ++i) {
+            ByteUtils.indexOf(data, 0, data.length, matcher);
+        }
+
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(allocated < 1000, "Allocated " + allocated + " bytes");
+    }
+
+    @Test public void testControl() {
+        for (int c = 0; c < 256; ++c) {
+            assertEquals(Character.isISOControl(c), ByteMatcher.control().matches((byte) c), "Byte " + c);
+        }
+    }
+
+    @Test public void testSequence() {
+        ByteMatcher crlf = ByteMatcher.sequence((byte) '\r', (byte) '\n');
+        byte[]      data = "a\rb\r\r\nc\r".getBytes();
+
+        assertEquals(5,  ByteUtils.indexOf(data, 0, data.length, crlf));
+        assertEquals(-1, ByteUtils.indexOf(data, 6, 2, crlf));
+        assertEquals(0,  ByteUtils.indexOf(new byte[] { '\n' }, 0, 1, crlf), "Match across buffers");
+
+        crlf.reset();
+        assertEquals(-1, ByteUtils.indexOf(new byte[] { '\n' }, 0, 1, crlf));
+
+        final ByteMatcher etxLrc = ByteMatcher.sequence(ByteMatcher.anyOf((byte) 3), ByteMatcher.anyByte());
+        assertEquals(3, ByteUtils.indexOf(new byte[] { 2, 'x', 3, 3, 9 }, 0, 5, etxLrc));
+
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            public void execute() throws Exception { ByteMatcher.sequence(new ByteMatcher[] { etxLrc }); }
+        });
+    }
+
+    @Test public void testPipeReadUntil() throws IOException {
+        Pipe.Source src = new Pipe.Source();
+        Pipe.Sink   dst = new Pipe.Sink(src);
+
+        dst.write("abc\r".getBytes());
+        dst.write("\ndef\r\nghi".getBytes());
+
+        ByteMatcher crlf   = ByteMatcher.sequence((byte) '\r', (byte) '\n');
+        byte[]      buffer = new byte[100];
+
+        assertEquals(5, src.readUntil(buffer, 0, 100, crlf, 0, TimeUnit.SECONDS));
+        assertEquals(5, src.readUntil(buffer, 0, 100, crlf, 0, TimeUnit.SECONDS));
+        assertEquals("def\r\n", new String(buffer, 0, 5));
+        assertEquals(3, src.readUntil(buffer, 0, 100, crlf, 0, TimeUnit.SECONDS));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(6);
+        direct.put("jk\nlmn".getBytes()).flip();
+        dst.write("opq\nrst".getBytes());
+        dst.writeOwned(direct);
+
+        for (String expected : new String[] { "opq\n", "rstjk\n" }) {
+            java.util.Arrays.fill(buffer, (byte) 0x55);
+            assertEquals(expected.length(), src.readUntil(buffer, 0, 100, ByteMatcher.anyOf((byte) '\n'), 0, TimeUnit.SECONDS));
+            assertEquals(expected, new String(buffer, 0, expected.length()));
+
+            for (int i = expected.length(); i < buffer.length; ++i) {
+                assertEquals(0x55, buffer[i], "Nothing written past the returned count");
+            }
+        }
+
+        assertEquals('l', src.read());
+    }
+}
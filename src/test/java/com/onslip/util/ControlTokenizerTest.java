@@ -0,0 +1,48 @@
+package com.onslip.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.channels.Channels;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ControlTokenizerTest {
+    private static final byte[] data = "STATUS\u0002R\u00e4ksm\u00f6rg\u00e5s\u0003\r\n\u00ffend".getBytes(IOUtils.latin1);
+
+    @Test public void testTokens() throws IOException {
+        for (ControlTokenizer tokenizer : new ControlTokenizer[] {
+                new ControlTokenizer(new ByteArrayInputStream(data)),
+                new ControlTokenizer(new ByteArrayInputStream(data), 2),
+                new ControlTokenizer(Channels.newChannel(new ByteArrayInputStream(data))),
+            }) {
+            assertEquals("STATUS", tokenizer.nextToken());
+            assertEquals(0x02, tokenizer.read());
+            assertEquals("R\u00e4ksm\u00f6rg\u00e5s", tokenizer.nextTokenView().toString());
+            assertEquals("", tokenizer.nextToken(), "Delimiter is not consumed");
+            assertEquals(0x03, tokenizer.read());
+            assertEquals('\r', tokenizer.peek());
+            assertEquals('\r', tokenizer.read());
+            assertEquals('\n', tokenizer.read());
+
+            CharSequence view = tokenizer.nextTokenView();
+            assertEquals(4, view.length());
+            assertEquals('\u00ff', view.charAt(0));
+            assertEquals("end", view.subSequence(1, 4));
+            assertEquals(-1, tokenizer.peek());
+            assertNull(tokenizer.nextToken());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test public void testReadUntilControl() throws IOException {
+        PushbackInputStream is = new PushbackInputStream(new ByteArrayInputStream(data));
+
+        assertEquals("STATUS", IOUtils.readUntilControl(is));
+        assertEquals(0x02, is.read());
+        assertEquals("R\u00e4ksm\u00f6rg\u00e5s", IOUtils.readUntilControl(is));
+        is.skip(3);
+        assertEquals("\u00ffend", IOUtils.readUntilControl(is), "Stops at EOF");
+    }
+}
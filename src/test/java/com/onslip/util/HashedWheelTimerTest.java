@@ -0,0 +1,78 @@
+package com.onslip.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.Executable;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashedWheelTimerTest {
+    @Test public void testExpire() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        long start = System.currentTimeMillis();
+        HashedWheelTimer.Timeout timeout = HashedWheelTimer.shared().schedule(new Runnable() {
+            @Override public void run() {
+                latch.countDown();
+            }
+        }, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 200, "More than 200 ms passed");
+        assertTrue(System.currentTimeMillis() - start < 500, "Less than 500 ms passed");
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test public void testCancel() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("test", 1, TimeUnit.MILLISECONDS, 8);
+        final AtomicInteger expired = new AtomicInteger();
+
+        Runnable task = new Runnable() {
+            @Override public void run() {
+                expired.incrementAndGet();
+            }
+        };
+
+        HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[1000];
+
+        for (int i = 0; i < timeouts.length; ++i) {
+            timeouts[i] = timer.schedule(task, 100 + i % 50, TimeUnit.MILLISECONDS); // Several rounds of the wheel
+        }
+
+        for (int i = 0; i < timeouts.length; i += 2) {
+            assertTrue(timeouts[i].cancel());
+            assertTrue(timeouts[i].isCancelled());
+        }
+
+        Thread.sleep(400);
+        assertEquals(500, expired.get());
+        timer.stop();
+
+        assertThrows(IllegalStateException.class, new Executable() {
+            public void execute() throws Exception { HashedWheelTimer.shared().stop(); }
+        });
+    }
+
+    @Test public void testTaskError() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("test", 1, TimeUnit.MILLISECONDS, 8);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        timer.schedule(new Runnable() {
+            @Override public void run() {
+                throw new StackOverflowError("Broken task");
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        timer.schedule(new Runnable() {
+            @Override public void run() {
+                latch.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS), "Timer thread survived the error");
+        timer.stop();
+    }
+}
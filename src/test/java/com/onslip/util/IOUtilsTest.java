@@ -1,15 +1,27 @@
 package com.onslip.util;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.io.Reader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.MalformedInputException;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.Executable;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class IOUtilsTest {
@@ -30,6 +42,281 @@ public class IOUtilsTest {
         copyStreamTimeout(is, os);
     }
 
+    @Test public void copyFiles() throws IOException {
+        File from = File.createTempFile("copy", ".from");
+        File to   = File.createTempFile("copy", ".to");
+
+        try {
+            byte[] data = new byte[100000];
+
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = (byte) (i * 31);
+            }
+
+            FileOutputStream fos = new FileOutputStream(from);
+            fos.write(data);
+            fos.close();
+
+            FileInputStream fis = new FileInputStream(from);
+            fos = new FileOutputStream(to);
+
+            assertEquals(0, fis.read());
+            fos.write(0);
+            assertEquals(data.length - 1, IOUtils.copyStream(fis, fos));
+            assertEquals(-1, fis.read(), "Input stream is at EOF");
+            fos.write(new byte[] { 1, 2 });
+            fis.close();
+            fos.close();
+
+            byte[] copy = IOUtils.readFully(new FileInputStream(to));
+            assertEquals(data.length + 2, copy.length);
+            assertArrayEquals(data, Arrays.copyOf(copy, data.length));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            fis = new FileInputStream(from);
+            IOUtils.readFully(fis, direct);
+            direct.flip();
+            assertEquals(ByteBuffer.wrap(data), direct);
+            fis.close();
+
+            // File to non-file channel, and non-file channel to file
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            fis = new FileInputStream(from);
+            assertEquals(data.length, IOUtils.copyChannel(fis.getChannel(), Channels.newChannel(baos)));
+            assertArrayEquals(data, baos.toByteArray());
+            fis.close();
+
+            fos = new FileOutputStream(to);
+            assertEquals(data.length, IOUtils.copyChannel(Channels.newChannel(new ByteArrayInputStream(data)), fos.getChannel()));
+            fos.close();
+            assertArrayEquals(data, IOUtils.readFully(new FileInputStream(to)));
+        }
+        finally {
+            from.delete();
+            to.delete();
+        }
+    }
+
+    @Test public void copySpecialFiles() throws Exception {
+        File status = new File("/proc/self/status");
+        File fifo   = new File(System.getProperty("java.io.tmpdir"), "copy-" + System.nanoTime() + ".fifo");
+        File to     = File.createTempFile("copy", ".to");
+
+        Assumptions.assumeTrue(status.exists(), "Needs procfs");
+
+        try {
+            // Reports a size of 0, but is not empty
+            FileInputStream  fis = new FileInputStream(status);
+            FileOutputStream fos = new FileOutputStream(to);
+            long copied = IOUtils.copyStream(fis, fos);
+            fis.close();
+            fos.close();
+
+            byte[] copy = IOUtils.readFully(new FileInputStream(to));
+            assertTrue(copied > 0, "Copied " + copied + " bytes");
+            assertEquals(copied, copy.length);
+            assertTrue(new String(copy, "ISO-8859-1").startsWith("Name:"));
+
+            // Not seekable
+            Assumptions.assumeTrue(new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() == 0, "Needs mkfifo");
+
+            final File writeEnd = fifo;
+            Thread writer = new Thread() {
+                @Override public void run() {
+                    try {
+                        FileOutputStream fifoOut = new FileOutputStream(writeEnd);
+                        fifoOut.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+                        fifoOut.close();
+                    }
+                    catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            };
+
+            writer.start();
+            fis = new FileInputStream(fifo);
+            fos = new FileOutputStream(to);
+            assertEquals(10, IOUtils.copyStream(fis, fos));
+            fis.close();
+            fos.close();
+            writer.join();
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, IOUtils.readFully(new FileInputStream(to)));
+        }
+        finally {
+            fifo.delete();
+            to.delete();
+        }
+    }
+
+    @Test public void readFullySizes() throws IOException {
+        final byte[] data = new byte[20000];
+
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        for (long hint : new long[] { -1, 0, 100, data.length, data.length + 1 }) {
+            assertArrayEquals(data, IOUtils.readFully(new ByteArrayInputStream(data), hint), "Hint " + hint);
+            assertArrayEquals(data, IOUtils.readFully(new BufferedInputStream(new ByteArrayInputStream(data), 10), hint));
+        }
+
+        assertEquals(data.length, IOUtils.readFullyWrapped(new ByteArrayInputStream(data), -1).array().length,
+                     "available() gives the exact size");
+
+        ByteBuffer wrapped = IOUtils.readFullyWrapped(new ByteArrayInputStream(data, 0, 100), 1000);
+        assertEquals(0,    wrapped.position());
+        assertEquals(100,  wrapped.limit());
+        assertEquals(1000, wrapped.array().length);
+
+        wrapped = IOUtils.readFullyWrapped(new ByteArrayInputStream(data), Integer.MAX_VALUE);
+        assertEquals(data.length, wrapped.limit());
+        assertEquals(1 << 20, wrapped.array().length, "A huge hint only allocates 1 MiB up front");
+
+        byte[] large = new byte[(1 << 20) + 3000];
+        large[large.length - 1] = 1;
+        wrapped = IOUtils.readFullyWrapped(new ByteArrayInputStream(large), large.length);
+        assertEquals(large.length, wrapped.array().length, "Grows to the expected size");
+        assertEquals(1, wrapped.get(large.length - 1));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(100);
+        direct.put((byte) 1);
+        IOUtils.readFully(new ByteArrayInputStream(data), direct);
+        assertFalse(direct.hasRemaining());
+        assertEquals(data[98], direct.get(99));
+
+        final ByteBuffer heap = ByteBuffer.allocate(data.length + 1);
+        assertThrows(java.io.EOFException.class, new Executable() {
+            public void execute() throws Exception { IOUtils.readFully(new ByteArrayInputStream(data), heap); }
+        });
+        assertEquals(data.length, heap.position());
+    }
+
+    @Test public void mapFiles() throws IOException {
+        File file = File.createTempFile("map", ".txt");
+
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(IOUtils.writeLatin1OrUTF8("R\u00e4ksm\u00f6rg\u00e5s \u20ac"));
+            fos.close();
+
+            assertEquals("R\u00e4ksm\u00f6rg\u00e5s \u20ac", IOUtils.readLatin1OrUTF8(file));
+            assertEquals(20, IOUtils.map(file).remaining());
+
+            assertEquals(5, IOUtils.map(file, 0, 5).remaining());
+            assertEquals(2, IOUtils.map(file, 18, 5).remaining(), "Clipped at the end of the file");
+            assertEquals((byte) 0xAC, IOUtils.map(file, 15, 5).get(4));
+            assertEquals(0, IOUtils.map(file, 20, 5).remaining());
+            assertEquals(0, IOUtils.map(file, 100, 5).remaining());
+
+            fos = new FileOutputStream(file);
+            fos.write(IOUtils.writeLatin1OrUTF8("R\u00e4ksm\u00f6rg\u00e5s"));
+            fos.close();
+            assertEquals("R\u00e4ksm\u00f6rg\u00e5s", IOUtils.readLatin1OrUTF8(file));
+
+            new FileOutputStream(file).close();
+            assertEquals("", IOUtils.readLatin1OrUTF8(file));
+            assertEquals(0, IOUtils.map(file, 0, 5).remaining());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test public void writeLatin1OrUTF8() throws IOException {
+        String[] strings = { "", "abc", "R\u00e4ksm\u00f6rg\u00e5s", "R\u00e4ksm\u00f6rg\u00e5s \u20ac",
+                             "\u20ac", "\u00ff\ud83d\ude00\u00e4", "x\ud800y\udc00", new String(new char[3000]).replace('\0', '\u00e5') + "\u0100" };
+
+        for (String string : strings) {
+            byte[] expected = old(string);
+
+            assertArrayEquals(expected, IOUtils.writeLatin1OrUTF8(string));
+
+            byte[] buffer = new byte[expected.length + 2];
+            assertEquals(expected.length, IOUtils.writeLatin1OrUTF8(string, buffer, 1));
+            assertArrayEquals(expected, Arrays.copyOfRange(buffer, 1, 1 + expected.length));
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            assertEquals(expected.length, IOUtils.writeLatin1OrUTF8(string, baos));
+            assertArrayEquals(expected, baos.toByteArray());
+
+            if (expected.length > 0) {
+                final String s = string;
+                final ByteBuffer small = ByteBuffer.allocate(expected.length - 1);
+
+                assertThrows(BufferOverflowException.class, new Executable() {
+                    public void execute() throws Exception { IOUtils.writeLatin1OrUTF8(s, small); }
+                });
+                assertEquals(0, small.position());
+            }
+        }
+    }
+
+    private static byte[] old(String string) {
+        return IOUtils.latin1Encoder.get().canEncode(string) ? string.getBytes(IOUtils.latin1)
+                                                             : ("\ufeff" + string).getBytes(IOUtils.utf8);
+    }
+
+    @Test public void latin1OrUTF8Reader() throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < 5000; ++i) {
+            sb.append(i % 3 == 0 ? "\u20ac" : i % 3 == 1 ? "\u00e4" : "x");
+        }
+
+        byte[] utf8   = IOUtils.writeLatin1OrUTF8(sb.toString());
+        byte[] latin1 = IOUtils.writeLatin1OrUTF8(sb.toString().replace('\u20ac', 'e'));
+        byte[] broken = Arrays.copyOf(utf8, 100);
+
+        for (byte[] bytes : new byte[][] { utf8, latin1, broken, new byte[] { (byte) 0xEF, (byte) 0xBB }, new byte[0] }) {
+            assertEquals(IOUtils.readLatin1OrUTF8(bytes), readAll(IOUtils.latin1OrUTF8Reader(new ByteArrayInputStream(bytes))));
+        }
+
+        utf8[10000] = (byte) 0xff;
+        assertThrows(MalformedInputException.class, new Executable() {
+            public void execute() throws Exception { readAll(IOUtils.latin1OrUTF8Reader(new ByteArrayInputStream(utf8))); }
+        });
+    }
+
+    private static String readAll(Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[1000];
+        int count;
+
+        while ((count = reader.read(buffer)) >= 0) {
+            sb.append(buffer, 0, count);
+        }
+
+        reader.close();
+        return sb.toString();
+    }
+
+    @Test public void copyStreamStopBytes() throws IOException {
+        byte[] data = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+
+        for (InputStream is : new InputStream[] {
+                new ByteArrayInputStream(data),
+                new BufferedInputStream(new ByteArrayInputStream(data), 4),
+                new PipedInputStream(10) {{ new PipedOutputStream(this).write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }); }},
+            }) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+            assertTrue(IOUtils.copyStream(is, baos, 1000, 100, new byte[] { 3 }));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, baos.toByteArray());
+            baos.reset();
+
+            assertTrue(IOUtils.copyStream(is, baos, 1000, 2, new byte[] { 9 }));
+            assertArrayEquals(new byte[] { 4, 5 }, baos.toByteArray());
+            baos.reset();
+
+            assertTrue(IOUtils.copyStream(is, baos, 1000, 100, new byte[] { 7, 9 }));
+            assertArrayEquals(new byte[] { 6, 7 }, baos.toByteArray());
+            baos.reset();
+
+            assertEquals(8, is.read(), "Bytes after the stop byte are left in the stream");
+        }
+    }
+
     private void copyStreamTimeout(final InputStream pis, final OutputStream pos) throws IOException {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
@@ -1,9 +1,21 @@
 package com.onslip.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.function.Executable;
 import static org.junit.jupiter.api.Assertions.*;
@@ -83,6 +95,413 @@ public class PipeTest {
         assertEquals(-1, src.read(last, 0, 1));
     }
 
+    @Test public void testBulkRead() throws IOException {
+        Pipe.Source src = new Pipe.Source();
+        Pipe.Sink   dst = new Pipe.Sink(src);
+
+        dst.write(new byte[] { 1, 2, 3 });
+        dst.write(new byte[] { 4, 5 });
+        dst.write(new byte[] { 6, 7, 8, 9 });
+
+        byte[] buffer = new byte[4];
+        assertEquals(4, src.read(buffer, 0, 4));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, buffer);
+        assertEquals(0, src.read(buffer, 0, 0));
+        assertEquals(2, src.skip(2));
+        assertEquals(7, src.read());
+
+        dst.write(new byte[] { 10, 11 });
+        dst.close();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertEquals(4, src.transferTo(baos));
+        assertArrayEquals(new byte[] { 8, 9, 10, 11 }, baos.toByteArray());
+        assertEquals(0, src.skip(1));
+        assertEquals(-1, src.read(buffer, 0, 4));
+    }
+
+    @Test public void testWriteOwned() throws IOException {
+        Pipe.Source src = new Pipe.Source();
+        Pipe.Sink   dst = new Pipe.Sink(src);
+
+        byte[] shared = new byte[] { 1, 2, 3, 4 };
+        dst.writeOwned(shared);
+        shared[3] = 5; // Not copied, so this is visible to the reader
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put(new byte[] { 6, 7, 8, 9 }).flip();
+        direct.get();
+        dst.writeOwned(direct);
+        assertEquals(1, direct.position());
+
+        dst.writeOwned(new byte[] { 9, 10, 11, 12 }, 1, 2);
+        dst.close();
+
+        byte[] buffer = new byte[2];
+        assertEquals(2, src.read(buffer));
+        assertArrayEquals(new byte[] { 1, 2 }, buffer);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertEquals(7, src.transferTo(baos));
+        assertArrayEquals(new byte[] { 3, 5, 7, 8, 9, 10, 11 }, baos.toByteArray());
+    }
+
+    @Test public void testChannels() throws IOException {
+        Pipe.Source src = new Pipe.Source();
+        Pipe.Sink   dst = new Pipe.Sink(src);
+
+        ScatteringByteChannel in  = src.channel();
+        GatheringByteChannel  out = dst.channel();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[] { 1, 2, 3 }).flip();
+        assertEquals(3, out.write(direct));
+        assertFalse(direct.hasRemaining());
+        direct.clear();
+        assertEquals(3, out.write(new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 4, 5 }), ByteBuffer.wrap(new byte[] { 6 }) }));
+
+        ByteBuffer first  = ByteBuffer.allocate(2);
+        ByteBuffer second = ByteBuffer.allocateDirect(8);
+        assertEquals(6, in.read(new ByteBuffer[] { first, second }));
+        assertArrayEquals(new byte[] { 1, 2 }, first.array());
+        second.flip();
+        assertEquals(4, second.remaining());
+        assertEquals(3, second.get(0));
+        assertEquals(6, second.get(3));
+
+        assertEquals(0, in.read(ByteBuffer.allocate(0)));
+        out.close();
+        assertFalse(out.isOpen());
+        assertEquals(-1, in.read(direct));
+
+        in.close();
+        assertFalse(in.isOpen());
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { src.read(); } });
+    }
+
+    @Test public void testMessages() throws IOException {
+        final Pipe.Source src = new Pipe.Source();
+        Pipe.Sink         dst = new Pipe.Sink(src);
+
+        byte[] owned = new byte[] { 1, 2, 3 };
+        dst.writeOwned(owned);
+        dst.write(new byte[] { 4, 5 });
+        dst.write(6);
+        dst.write(new byte[] { 7, 8, 9 });
+
+        ByteBuffer message = src.readMessage();
+        assertTrue(message.isReadOnly());
+        assertEquals(3, message.remaining());
+        assertEquals(3, message.get(2));
+        owned[2] = 0; // Not copied
+        assertEquals(0, message.get(2));
+
+        assertEquals(4, src.read());
+        assertEquals(ByteBuffer.wrap(new byte[] { 5 }), src.readMessage());
+
+        ArrayList<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+        dst.close();
+        assertEquals(2, src.drainMessages(messages, 10));
+        assertEquals(Arrays.asList(ByteBuffer.wrap(new byte[] { 6 }), ByteBuffer.wrap(new byte[] { 7, 8, 9 })), messages);
+        assertEquals(-1, src.drainMessages(messages, 10));
+        assertNull(src.readMessage());
+
+        final Pipe.Source ring = new Pipe.Source(4);
+        new Pipe.Sink(ring);
+        assertThrows(UnsupportedOperationException.class, new Executable() { public void execute() throws Exception { ring.readMessage(); } });
+    }
+
+    @Test public void testBounded() throws IOException {
+        final Pipe.Source src = new Pipe.Source(4);
+        final Pipe.Sink   dst = new Pipe.Sink(src);
+
+        dst.write(new byte[] { 1, 2, 3 });
+        assertEquals(1, src.read());
+        assertEquals(2, src.read());
+        dst.write(new byte[] { 4, 5, 6 }); // Wraps around
+        assertEquals(4, src.available());
+
+        byte[] buffer = new byte[4];
+        assertEquals(4, src.read(buffer));
+        assertArrayEquals(new byte[] { 3, 4, 5, 6 }, buffer);
+
+        Thread reader = new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(150);
+                    IOUtils.readBytes(src, 6);
+                }
+                catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+
+        reader.start();
+        long start = System.currentTimeMillis();
+        dst.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }); // Blocks until reader has consumed 4 bytes
+        assertTrue(System.currentTimeMillis() - start >= 100, "More than 100 ms passed");
+        assertTrue(System.currentTimeMillis() - start < 500, "Less than 500 ms passed");
+        dst.close();
+
+        try {
+            reader.join();
+        }
+        catch (InterruptedException ex) {
+            fail(ex);
+        }
+
+        assertEquals(2, src.read(buffer));
+        assertArrayEquals(new byte[] { 7, 8 }, Arrays.copyOf(buffer, 2));
+        assertEquals(-1, src.read());
+    }
+
+    @Test public void testBoundedOverflow() throws IOException {
+        final Pipe.Source src1 = new Pipe.Source(4, Pipe.Overflow.FAIL, 0);
+        final Pipe.Sink   dst1 = new Pipe.Sink(src1);
+
+        dst1.write(new byte[] { 1, 2, 3 });
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { dst1.write(new byte[] { 4, 5 }); } });
+        dst1.write(4);
+        assertEquals(4, src1.available());
+
+        final Pipe.Source src2 = new Pipe.Source(4, Pipe.Overflow.TIMEOUT, 200);
+        final Pipe.Sink   dst2 = new Pipe.Sink(src2);
+
+        long start = System.currentTimeMillis();
+        InterruptedIOException ex = assertThrows(InterruptedIOException.class, new Executable() { public void execute() throws Exception { dst2.write(new byte[] { 1, 2, 3, 4, 5, 6 }); } });
+        assertEquals(4, ex.bytesTransferred);
+        assertTrue(System.currentTimeMillis() - start >= 150, "More than 150 ms passed");
+        assertTrue(System.currentTimeMillis() - start < 1000, "Less than 1000 ms passed");
+
+        final Pipe.Source src5 = new Pipe.Source(4, Pipe.Overflow.TIMEOUT, 300);
+        final Pipe.Sink   dst5 = new Pipe.Sink(src5);
+
+        dst5.write(new byte[] { 1, 2, 3, 4 });
+
+        Thread waiting = new Thread() {
+            @Override public void run() {
+                try {
+                    dst5.write(5); // Holds the write lock while waiting for room
+                }
+                catch (IOException expected) {
+                }
+            }
+        };
+
+        waiting.start();
+        sleep(50);
+        start = System.currentTimeMillis();
+        assertThrows(InterruptedIOException.class, new Executable() { public void execute() throws Exception { dst5.write(6); } });
+        assertTrue(System.currentTimeMillis() - start >= 250, "More than 250 ms passed");
+        assertTrue(System.currentTimeMillis() - start < 450, "Less than 450 ms passed, not waiting for the other writer too");
+        join(waiting);
+
+        Pipe.Source src4 = new Pipe.Source(4, Pipe.Overflow.DROP_OLDEST, 0);
+        Pipe.Sink   dst4 = new Pipe.Sink(src4);
+
+        dst4.write(new byte[] { 1, 2, 3 });
+        dst4.write(new byte[] { 4, 5 });
+        dst4.close();
+        assertArrayEquals(new byte[] { 2, 3, 4, 5 }, IOUtils.readFully(src4));
+
+        final Pipe.Source src3 = new Pipe.Source(4);
+        final Pipe.Sink   dst3 = new Pipe.Sink(src3);
+
+        new Timer().schedule(new TimerTask() {
+            @Override public void run() {
+                try {
+                    src3.close();
+                }
+                catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, 150);
+
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { dst3.write(new byte[8]); } });
+    }
+
+    @Test public void testBroadcast() throws IOException {
+        Pipe.Broadcast dst  = new Pipe.Broadcast();
+        Pipe.Source    src1 = new Pipe.Source(dst);
+
+        dst.write(new byte[] { 1, 2 });
+        final Pipe.Source src2 = new Pipe.Source(dst);
+        dst.write(new byte[] { 3, 4 });
+
+        assertEquals(1, src1.read());
+        assertEquals(3, src2.read());
+        assertEquals(2, src1.read());
+
+        src2.close(); // Only disconnects src2
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { src2.read(); } });
+        dst.write(5);
+        dst.close();
+
+        assertArrayEquals(new byte[] { 3, 4, 5 }, IOUtils.readFully(src1));
+        assertEquals(-1, new Pipe.Source(dst).read());
+    }
+
+    @Test public void testBroadcastWriters() throws IOException {
+        final Pipe.Broadcast dst  = new Pipe.Broadcast();
+        Pipe.Source          src1 = new Pipe.Source(dst);
+        Pipe.Source          src2 = new Pipe.Source(dst);
+        Thread[]             writers = new Thread[2];
+
+        for (int i = 0; i < writers.length; ++i) {
+            final byte[] chunk = new byte[] { (byte) i, (byte) i, (byte) i };
+
+            writers[i] = new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int j = 0; j < 10000; ++j) {
+                            dst.write(chunk);
+                        }
+                    }
+                    catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            };
+
+            writers[i].start();
+        }
+
+        for (Thread writer : writers) {
+            join(writer);
+        }
+
+        dst.close();
+
+        byte[] data = IOUtils.readFully(src1);
+        assertEquals(60000, data.length);
+        assertArrayEquals(data, IOUtils.readFully(src2), "Both readers see the same interleaving");
+    }
+
+    @Test public void testBroadcastOverflow() throws IOException {
+        Pipe.Broadcast dst1 = new Pipe.Broadcast(4, Pipe.Overflow.DROP_OLDEST);
+        Pipe.Source    fast = new Pipe.Source(dst1);
+        Pipe.Source    slow = new Pipe.Source(dst1);
+
+        byte[] buffer = new byte[4];
+
+        for (int i = 0; i < 6; i += 2) {
+            dst1.write(new byte[] { (byte) i, (byte) (i + 1) });
+            assertEquals(2, fast.read(buffer));
+            assertEquals(i, buffer[0]);
+        }
+
+        dst1.close();
+        assertArrayEquals(new byte[] { 2, 3, 4, 5 }, IOUtils.readFully(slow));
+
+        Pipe.Broadcast    dst2  = new Pipe.Broadcast(4, Pipe.Overflow.DISCONNECT);
+        Pipe.Source       fast2 = new Pipe.Source(dst2);
+        final Pipe.Source slow2 = new Pipe.Source(dst2);
+
+        dst2.write(new byte[] { 1, 2, 3 });
+        assertEquals(3, fast2.read(buffer));
+        dst2.write(new byte[] { 4, 5 });
+        assertEquals(2, fast2.read(buffer));
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { slow2.read(); } });
+
+        assertThrows(IllegalArgumentException.class, new Executable() { public void execute() throws Exception {
+            new Pipe.Broadcast(4, Pipe.Overflow.FAIL);
+        } });
+        assertThrows(IllegalArgumentException.class, new Executable() { public void execute() throws Exception {
+            new Pipe.Broadcast(4, Pipe.Overflow.TIMEOUT);
+        } });
+    }
+
+    @Test public void testBroadcastBlock() throws IOException {
+        final Pipe.Broadcast dst  = new Pipe.Broadcast(4, Pipe.Overflow.BLOCK);
+        Pipe.Source          fast = new Pipe.Source(dst);
+        Pipe.Source          slow = new Pipe.Source(dst);
+
+        Thread writer = new Thread() {
+            @Override public void run() {
+                try {
+                    for (int i = 0; i < 8; i += 2) {
+                        dst.write(new byte[] { (byte) i, (byte) (i + 1) });
+                    }
+
+                    dst.close();
+                }
+                catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+
+        byte[] buffer = new byte[8];
+        int    count  = 0;
+
+        while (count < 4) {
+            count += fast.read(buffer, count, 4 - count);
+        }
+
+        sleep(100);
+        assertTrue(fast.available() <= 2, "Writer blocked by the slow reader");
+        assertEquals(4, slow.available());
+
+        assertArrayEquals(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7 }, IOUtils.readFully(slow));
+        System.arraycopy(IOUtils.readFully(fast), 0, buffer, count, 4);
+        assertArrayEquals(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7 }, buffer, "Each chunk delivered exactly once");
+        join(writer);
+    }
+
+    @Test public void testSpill() throws IOException {
+        File dir = Files.createTempDirectory("pipe").toFile();
+
+        try {
+            Pipe.Source src = new Pipe.Source(4, dir);
+            Pipe.Sink   dst = new Pipe.Sink(src);
+
+            dst.write(new byte[] { 1, 2, 3 });
+            assertEquals(0, dir.list().length);
+            dst.write(new byte[] { 4, 5 });
+            dst.write(6);
+            assertEquals(1, dir.list().length);
+            assertEquals(6, src.available());
+
+            byte[] buffer = new byte[4];
+            assertEquals(4, src.read(buffer));
+            assertArrayEquals(new byte[] { 1, 2, 3, 4 }, buffer);
+            assertEquals(1, dir.list().length);
+            String spare = dir.list()[0];
+            assertEquals(2, src.read(buffer));
+            assertArrayEquals(new byte[] { 5, 6 }, Arrays.copyOf(buffer, 2));
+            assertArrayEquals(new String[] { spare }, dir.list(), "Kept for the next spill");
+
+            dst.write(7); // Back to memory
+            dst.write(new byte[] { 8, 9, 10, 11 });
+            assertArrayEquals(new String[] { spare }, dir.list(), "Spare segment reused");
+            dst.close();
+            assertArrayEquals(new byte[] { 7, 8, 9, 10, 11 }, IOUtils.readFully(src));
+            src.close();
+            assertEquals(0, dir.list().length);
+
+            src = new Pipe.Source(0, dir);
+            dst = new Pipe.Sink(src);
+            dst.write(1);
+            assertEquals(1, dir.list().length);
+            src.close();
+            assertEquals(0, dir.list().length);
+
+            Pipe.Broadcast    dst2 = new Pipe.Broadcast(4, Pipe.Overflow.DISCONNECT);
+            final Pipe.Source src2 = new Pipe.Source(dst2, 0, dir);
+            dst2.write(new byte[] { 1, 2, 3 });
+            assertEquals(1, dir.list().length);
+            dst2.write(new byte[] { 4, 5 }); // Disconnects src2
+            assertEquals(0, dir.list().length, "Spill files deleted on disconnect");
+            assertThrows(IOException.class, new Executable() { public void execute() throws Exception { src2.read(); } });
+        }
+        finally {
+            dir.delete();
+        }
+    }
+
     @Test public void testWakeUp() throws IOException {
         final Pipe.Source src = new Pipe.Source();
         final Pipe.Sink   dst = new Pipe.Sink(src);
@@ -104,6 +523,188 @@ public class PipeTest {
         assertTrue(System.currentTimeMillis() - start < 500, "Less than 500 ms passed");
     }
 
+    @Test public void testTimedRead() throws IOException {
+        final Pipe.Source src = new Pipe.Source();
+        final Pipe.Sink   dst = new Pipe.Sink(src);
+
+        byte[] buffer = new byte[4];
+        long start = System.currentTimeMillis();
+        assertFalse(src.awaitAvailable(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, src.read(buffer, 0, 4, 100, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 180, "More than 180 ms passed");
+        assertTrue(System.currentTimeMillis() - start < 500, "Less than 500 ms passed");
+
+        new Timer().schedule(new TimerTask() {
+            @Override public void run() {
+                try {
+                    dst.write(new byte[] { 1, 2 });
+                    dst.close();
+                }
+                catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, 150);
+
+        start = System.currentTimeMillis();
+        assertEquals(2, src.read(buffer, 0, 4, 10, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 100, "More than 100 ms passed");
+        assertTrue(System.currentTimeMillis() - start < 500, "Less than 500 ms passed");
+        assertTrue(src.awaitAvailable(0, TimeUnit.MILLISECONDS));
+        assertEquals(-1, src.read(buffer, 0, 4, 10, TimeUnit.SECONDS));
+    }
+
+    @Test public void testMetrics() throws IOException {
+        final Pipe.Source src = new Pipe.Source(16, Pipe.Overflow.FAIL, 0);
+        final Pipe.Sink   dst = new Pipe.Sink(src);
+
+        assertNull(src.getMetrics());
+        src.setMetricsEnabled(true);
+
+        dst.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        dst.write(new byte[] { 11, 12, 13, 14 });
+
+        byte[] buffer = new byte[6];
+        assertEquals(6, src.read(buffer));
+        dst.write(new byte[] { 15, 16, 17, 18, 19, 20, 21, 22 });
+
+        Pipe.Metrics metrics = dst.getMetrics();
+        assertEquals(16, metrics.getPeakQueuedBytes());
+        assertEquals(16, metrics.getQueuedBytes());
+        assertEquals(22, metrics.getBytesWritten());
+        assertEquals(3,  metrics.getChunksWritten());
+        assertEquals(6,  metrics.getBytesRead());
+        assertEquals(1,  metrics.getReads());
+        assertEquals(0,  metrics.getReaderBlockedNanos());
+
+        assertEquals(16, src.read(new byte[16]));
+        assertEquals(22, src.getMetrics().getBytesRead());
+        assertEquals(2,  src.getMetrics().getChunksRead(), "Ring buffer wrapped once");
+        assertEquals(2,  src.getMetrics().getReads());
+
+        src.setMetricsEnabled(false);
+        assertNull(dst.getMetrics());
+
+        Pipe.Source src2 = new Pipe.Source();
+        Pipe.Sink   dst2 = new Pipe.Sink(src2);
+
+        src2.setMetricsEnabled(true);
+        dst2.write(new byte[] { 1, 2, 3 });
+        dst2.write(new byte[] { 4, 5 });
+
+        for (int i = 1; i <= 4; ++i) {
+            assertEquals(i, src2.read());
+        }
+
+        assertEquals(4, src2.getMetrics().getReads());
+        assertEquals(1, src2.getMetrics().getChunksRead(), "Single-byte reads count drained chunks, not calls");
+        assertEquals(5, src2.read());
+        assertEquals(2, src2.getMetrics().getChunksRead());
+    }
+
+    @Test public void testSubscribe() throws IOException {
+        final Pipe.Source src = new Pipe.Source();
+        final Pipe.Sink   dst = new Pipe.Sink(src);
+
+        final ArrayList<String>   events       = new ArrayList<String>();
+        final Pipe.Subscription[] subscription = new Pipe.Subscription[1];
+
+        src.subscribe(new Pipe.Subscriber() {
+            @Override public void onSubscribe(Pipe.Subscription s) { subscription[0] = s; s.request(2); }
+            @Override public void onNext(ByteBuffer chunk)       { events.add("next " + chunk.remaining()); }
+            @Override public void onError(Throwable throwable)   { events.add("error " + throwable.getMessage()); }
+            @Override public void onComplete()                   { events.add("complete"); }
+        }, new Executor() {
+            @Override public void execute(Runnable command) { command.run(); }
+        });
+
+        dst.write(new byte[1]);
+        dst.write(new byte[2]);
+        dst.write(new byte[3]);
+        dst.close();
+        assertEquals(Arrays.asList("next 1", "next 2"), events);
+
+        subscription[0].request(10);
+        assertEquals(Arrays.asList("next 1", "next 2", "next 3", "complete"), events);
+
+        final Pipe.Source src2 = new Pipe.Source();
+        final Pipe.Sink   dst2 = new Pipe.Sink(src2);
+
+        src2.subscribe(new Pipe.Subscriber() {
+            @Override public void onSubscribe(Pipe.Subscription s) { s.request(1); }
+            @Override public void onNext(ByteBuffer chunk)       { events.add("next " + chunk.remaining()); }
+            @Override public void onError(Throwable throwable)   { events.add("error " + throwable.getMessage()); }
+            @Override public void onComplete()                   { events.add("complete"); }
+        }, new Executor() {
+            @Override public void execute(Runnable command) { command.run(); }
+        });
+
+        events.clear();
+        src2.close();
+        assertEquals(Arrays.asList("error Pipe closed"), events);
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { dst2.write(1); } });
+
+        final Pipe.Source src3 = new Pipe.Source();
+        final Pipe.Sink   dst3 = new Pipe.Sink(src3);
+
+        src3.subscribe(new Pipe.Subscriber() {
+            @Override public void onSubscribe(Pipe.Subscription s) { s.request(10); }
+            @Override public void onNext(ByteBuffer chunk)       { throw new IllegalStateException("Rejected " + chunk.remaining()); }
+            @Override public void onError(Throwable throwable)   { events.add("error " + throwable.getMessage()); }
+            @Override public void onComplete()                   { events.add("complete"); }
+        }, new Executor() {
+            @Override public void execute(Runnable command) { command.run(); }
+        });
+
+        events.clear();
+        dst3.write(new byte[2]);
+        assertEquals(Arrays.asList("error Rejected 2"), events, "onError once, after a throwing onNext");
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { dst3.write(1); } });
+        assertEquals(Arrays.asList("error Rejected 2"), events);
+    }
+
+    @Test public void testSubscribeSink() throws Exception {
+        final Pipe.Source src1 = new Pipe.Source();
+        final Pipe.Sink   dst1 = new Pipe.Sink(src1);
+        final Pipe.Source src2 = new Pipe.Source(64);
+        final Pipe.Sink   dst2 = new Pipe.Sink(src2);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        src1.subscribe(dst2.subscriber(4), executor);
+
+        byte[] data = new byte[10000];
+
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        for (int i = 0; i < data.length; i += 100) {
+            dst1.write(data, i, 100);
+        }
+
+        dst1.close();
+        assertArrayEquals(data, IOUtils.readFully(src2));
+        executor.shutdown();
+
+        final Pipe.Broadcast dst3 = new Pipe.Broadcast();
+        final Pipe.Source    src3 = new Pipe.Source(dst3);
+        final Pipe.Source    src4 = new Pipe.Source(dst3);
+
+        Pipe.Subscriber subscriber = dst3.subscriber(4);
+        subscriber.onSubscribe(new Pipe.Subscription() {
+            @Override public void request(long n) {}
+            @Override public void cancel()        {}
+        });
+        subscriber.onNext(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        assertEquals(2, src3.available());
+        subscriber.onError(new IOException("Upstream failed"));
+
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { src3.read(); } });
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { src4.read(); } });
+        assertThrows(IOException.class, new Executable() { public void execute() throws Exception { dst3.write(1); } });
+        assertNull(dst3.getMetrics());
+    }
+
     @Test public void testEOF() throws IOException {
         final Pipe.Source src = new Pipe.Source();
         final Pipe.Sink   dst = new Pipe.Sink(src);
@@ -158,4 +759,22 @@ public class PipeTest {
         assertTrue(System.currentTimeMillis() - start >= 100, "More than 100 ms passed");
         assertTrue(System.currentTimeMillis() - start < 500, "Less than 500 ms passed");
     }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex) {
+            fail(ex);
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        }
+        catch (InterruptedException ex) {
+            fail(ex);
+        }
+    }
 }